@@ -0,0 +1,59 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+
+/**
+ * Seed, extent and simple geometries shared by the benchmarks, so that
+ * results are comparable between runs and between releases. Datasets are
+ * generated by {@link SyntheticDataGenerator}.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class BenchmarkData {
+
+    static final long SEED = 20261017L;
+    static final double EXTENT = 1000.0;
+
+    private static final GeometryFactory FACTORY = new GeometryFactory();
+
+    /**
+     * Return a regular polygon of the given number of vertices.
+     */
+    static Polygon regularPolygon(double x, double y, double radius, int vertices) {
+        Coordinate[] coordinates = new Coordinate[vertices + 1];
+        for (int k = 0 ; k < vertices ; k++) {
+            double angle = 2 * Math.PI * k / vertices;
+            coordinates[k] = new Coordinate(
+                x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+        }
+        coordinates[vertices] = coordinates[0];
+        return FACTORY.createPolygon(coordinates);
+    }
+
+}
@@ -0,0 +1,100 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of each AggregationFunction, accumulating a set of values with
+ * its Accumulator. Values have the first input type accepted by the
+ * function among DOUBLE, INTEGER, STRING and GEOMETRY, and 10% of them are
+ * null.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FunctionBenchmark {
+
+    @Param({"Count", "CountNonNull", "Sum", "Average", "Min", "Max",
+            "StandardDeviation", "Median", "Majority", "Minority",
+            "ConcatenateAll", "ConcatenateDistinct", "Union"})
+    public String function;
+
+    @Param({"100", "10000"})
+    public int values;
+
+    private static final AttributeType[] INPUT_TYPES = new AttributeType[]{
+        AttributeType.DOUBLE, AttributeType.INTEGER,
+        AttributeType.STRING, AttributeType.GEOMETRY
+    };
+
+    private AggregationFunction aggregationFunction;
+    private AttributeType inputType;
+    private Object[] input;
+
+    @Setup
+    public void setup() throws Exception {
+        aggregationFunction = (AggregationFunction)Class.forName(
+            "fr.michaelm.jump.plugin.aggregation.function." + function)
+            .getDeclaredConstructor().newInstance();
+        for (AttributeType type : INPUT_TYPES) {
+            if (aggregationFunction.getReturnAttributeType(type) != null) {
+                inputType = type;
+                break;
+            }
+        }
+        Random random = new Random(BenchmarkData.SEED);
+        input = new Object[values];
+        // values are drawn from 1000 distinct values, so that Majority,
+        // Minority and ConcatenateDistinct have duplicates to handle
+        for (int i = 0 ; i < values ; i++) {
+            if (random.nextInt(10) == 0) continue;
+            int k = random.nextInt(1000);
+            if (inputType == AttributeType.DOUBLE) input[i] = k + random.nextDouble();
+            else if (inputType == AttributeType.INTEGER) input[i] = k;
+            else if (inputType == AttributeType.STRING) input[i] = "V" + k;
+            else input[i] = BenchmarkData.regularPolygon(
+                k % 32 * 10.0, k / 32 * 10.0, 8.0, 16);
+        }
+    }
+
+    @Benchmark
+    public Object accumulate() {
+        AggregationFunction.Accumulator accumulator =
+            aggregationFunction.createAccumulator(inputType, true, null);
+        for (Object value : input) accumulator.accumulate(value);
+        return accumulator.finish();
+    }
+
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.I18N;
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.task.DummyTaskMonitor;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of a complete aggregation (Count and Sum of point values on
+ * a polygon coverage), for each join engine, with uniform or clustered
+ * points, varying cardinality and target geometry complexity.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class JoinBenchmark {
+
+    private static final I18N i18n = I18N.getInstance("fr.michaelm.jump.plugin.aggregation");
+
+    @Param({"UNIFORM_POINTS", "CLUSTERED_POINTS"})
+    public String sourceKind;
+
+    @Param({"10000", "100000", "1000000"})
+    public int sources;
+
+    // targets are a Voronoi coverage of the extent
+    @Param({"100", "10000"})
+    public int targets;
+
+    // minimum number of vertices of target polygons
+    @Param({"8", "256"})
+    public int vertices;
+
+    @Param({"NESTED_LOOP", "DUAL_TREE", "PLANE_SWEEP"})
+    public String engine;
+
+    @Param({"1"})
+    public int threads;
+
+    private FeatureCollection sourceCollection;
+    private FeatureCollection targetCollection;
+    private AggregationEngine aggregationEngine;
+
+    @Setup
+    public void setup() {
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(BenchmarkData.SEED);
+        generator.setExtent(BenchmarkData.EXTENT);
+        generator.setVertices(vertices);
+        generator.setAttributeTypes(AttributeType.DOUBLE);
+        SyntheticDataGenerator.Pair pair = generator.generatePair(
+            SyntheticDataGenerator.Kind.valueOf(sourceKind), sources,
+            SyntheticDataGenerator.Kind.VORONOI_COVERAGE, targets);
+        sourceCollection = pair.sources;
+        targetCollection = pair.targets;
+        List<AggregationSpec> specs = AggregationSpec.parse(
+            i18n.get("function.Count") + "(DOUBLE_0);" + i18n.get("function.Sum") + "(DOUBLE_0)");
+        aggregationEngine = new AggregationEngine(
+            GeometryPredicate.getPredicate(i18n.get("predicate.Intersects")),
+            new double[]{0.0}, specs);
+        aggregationEngine.setSourceName("points");
+        aggregationEngine.setThreads(threads);
+        aggregationEngine.setJoinEngine(JoinEngine.valueOf(engine));
+    }
+
+    @Benchmark
+    public FeatureCollection aggregate() {
+        return aggregationEngine.aggregate(sourceCollection, targetCollection,
+            new DummyTaskMonitor());
+    }
+
+}
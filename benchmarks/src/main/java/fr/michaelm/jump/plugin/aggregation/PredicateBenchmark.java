@@ -0,0 +1,100 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.I18N;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of each GeometryPredicate, evaluated between a target polygon
+ * and candidates (points and small polygons) spread around it, either with
+ * the target prepared once, or with the plain isTrue method.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredicateBenchmark {
+
+    private static final I18N i18n = I18N.getInstance("fr.michaelm.jump.plugin.aggregation");
+
+    @Param({"Intersects", "PlainIntersects", "CoveredBy", "Covers",
+            "Equals", "Within", "WithinDistance"})
+    public String predicate;
+
+    // number of vertices of the target polygon
+    @Param({"8", "256", "8192"})
+    public int vertices;
+
+    private static final int CANDIDATES = 1000;
+
+    private GeometryPredicate relation;
+    private final double[] params = new double[]{10.0};
+    private Geometry target;
+    private Geometry[] candidates;
+
+    @Setup
+    public void setup() {
+        relation = GeometryPredicate.getPredicate(i18n.get("predicate." + predicate));
+        target = BenchmarkData.regularPolygon(500, 500, 400, vertices);
+        GeometryFactory factory = new GeometryFactory();
+        Random random = new Random(BenchmarkData.SEED);
+        candidates = new Geometry[CANDIDATES];
+        for (int i = 0 ; i < CANDIDATES ; i++) {
+            double x = random.nextDouble() * BenchmarkData.EXTENT;
+            double y = random.nextDouble() * BenchmarkData.EXTENT;
+            candidates[i] = i % 2 == 0 ?
+                factory.createPoint(new Coordinate(x, y)) :
+                BenchmarkData.regularPolygon(x, y, 20, 16);
+        }
+    }
+
+    @Benchmark
+    public void prepared(Blackhole blackhole) {
+        GeometryPredicate.PreparedPredicate prepared = relation.prepare(target, params);
+        for (Geometry candidate : candidates) {
+            blackhole.consume(prepared.isTrue(candidate));
+        }
+    }
+
+    @Benchmark
+    public void plain(Blackhole blackhole) {
+        for (Geometry candidate : candidates) {
+            blackhole.consume(relation.isTrue(target, candidate, params));
+        }
+    }
+
+}
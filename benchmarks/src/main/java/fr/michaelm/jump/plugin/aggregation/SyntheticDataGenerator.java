@@ -0,0 +1,398 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.*;
+import com.vividsolutions.jump.io.DriverProperties;
+import com.vividsolutions.jump.io.JMLWriter;
+import com.vividsolutions.jump.io.JUMPWriter;
+import com.vividsolutions.jump.io.ShapefileWriter;
+import com.vividsolutions.jump.io.datasource.DataSource;
+import org.locationtech.jts.densify.Densifier;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.triangulate.VoronoiDiagramBuilder;
+
+import java.util.*;
+import java.util.stream.IntStream;
+
+/**
+ * Seeded generator of synthetic feature collections for benchmarks :
+ * uniform and clustered points, Voronoi polygon coverages, long lines and
+ * polygons with many vertices, with INTEGER, DOUBLE, STRING and DATE
+ * attributes.
+ * <p>
+ * The i-th feature of a collection only depends on the seed, on the
+ * generator settings and on i, so that features are generated in parallel
+ * and collections are identical from one run to the other, whatever the
+ * number of processors. Apart from the features themselves, generation does
+ * not use memory proportional to the number of features (except for Voronoi
+ * coverages), which makes it possible to generate tens of millions of
+ * features (with a large enough heap).
+ * <p>
+ * The generator can also be run from the command line to write a dataset
+ * to a shapefile or a jml file :
+ * <pre>
+ * java -cp benchmarks.jar fr.michaelm.jump.plugin.aggregation.SyntheticDataGenerator \
+ *     --kind CLUSTERED_POINTS --count 50000000 --output points.shp
+ * </pre>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class SyntheticDataGenerator {
+
+    /**
+     * Kinds of generated geometries.
+     */
+    public enum Kind {
+        /** Points uniformly distributed over the extent. */
+        UNIFORM_POINTS,
+        /** Points in gaussian clusters, cluster sizes following a Zipf law. */
+        CLUSTERED_POINTS,
+        /** Random walk lines crossing a large part of the extent. */
+        LONG_LINES,
+        /** Star-shaped polygons with many vertices. */
+        COMPLEX_POLYGONS,
+        /** Voronoi cells covering the extent without overlap. */
+        VORONOI_COVERAGE
+    }
+
+    /**
+     * A source and a target feature collection.
+     */
+    public static class Pair {
+        public final FeatureCollection sources;
+        public final FeatureCollection targets;
+        Pair(FeatureCollection sources, FeatureCollection targets) {
+            this.sources = sources;
+            this.targets = targets;
+        }
+    }
+
+    private static final long DAY = 24L * 3600L * 1000L;
+    // 2000-01-01
+    private static final long DATE_ORIGIN = 946684800000L;
+
+    private final long seed;
+    private final GeometryFactory factory = new GeometryFactory();
+
+    private double extent = 1000.0;
+    private int vertices = 64;
+    private int clusters = 100;
+    private double skew = 1.0;
+    private AttributeType[] attributeTypes = new AttributeType[]{
+        AttributeType.INTEGER, AttributeType.DOUBLE,
+        AttributeType.STRING, AttributeType.DATE
+    };
+    private int distinctValues = 1000;
+    private double nullRatio = 0.0;
+
+    public SyntheticDataGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Set the size of the square [0, extent] x [0, extent] containing the
+     * generated geometries.
+     */
+    public void setExtent(double extent) {
+        this.extent = extent;
+    }
+
+    /**
+     * Set the number of vertices of lines and complex polygons, and the
+     * minimum number of vertices of Voronoi cells (cells are densified).
+     */
+    public void setVertices(int vertices) {
+        this.vertices = Math.max(4, vertices);
+    }
+
+    /**
+     * Set the number of clusters of clustered points.
+     */
+    public void setClusters(int clusters) {
+        this.clusters = Math.max(1, clusters);
+    }
+
+    /**
+     * Set the exponent of the Zipf law of cluster sizes (0 = clusters of
+     * equal size, the larger the skew, the larger the first clusters).
+     */
+    public void setSkew(double skew) {
+        this.skew = Math.max(0.0, skew);
+    }
+
+    /**
+     * Set the types of the attributes of generated features. Attributes are
+     * named after their type and rank (ex. INTEGER_0, DOUBLE_1).
+     */
+    public void setAttributeTypes(AttributeType... attributeTypes) {
+        for (AttributeType type : attributeTypes) {
+            if (type != AttributeType.INTEGER && type != AttributeType.DOUBLE &&
+                type != AttributeType.STRING && type != AttributeType.DATE) {
+                throw new IllegalArgumentException("Unsupported attribute type " + type);
+            }
+        }
+        this.attributeTypes = attributeTypes.clone();
+    }
+
+    /**
+     * Set the number of distinct values of INTEGER, STRING and DATE
+     * attributes.
+     */
+    public void setDistinctValues(int distinctValues) {
+        this.distinctValues = Math.max(1, distinctValues);
+    }
+
+    /**
+     * Set the ratio of null attribute values.
+     */
+    public void setNullRatio(double nullRatio) {
+        this.nullRatio = nullRatio;
+    }
+
+    /**
+     * Return a source and a target collection (generated with different
+     * random streams).
+     */
+    public Pair generatePair(Kind sourceKind, int sourceCount,
+                             Kind targetKind, int targetCount) {
+        return new Pair(generate(sourceKind, sourceCount, 0),
+                        generate(targetKind, targetCount, 1));
+    }
+
+    /**
+     * Return a collection of count features of the given kind.
+     */
+    public FeatureCollection generate(Kind kind, int count) {
+        return generate(kind, count, 0);
+    }
+
+    private FeatureCollection generate(Kind kind, int count, int stream) {
+        FeatureSchema schema = createSchema();
+        long streamSeed = mix(seed, stream);
+        Feature[] features = new Feature[count];
+        if (kind == Kind.VORONOI_COVERAGE) {
+            Geometry[] cells = voronoiCells(count, streamSeed);
+            IntStream.range(0, cells.length).parallel().forEach(i ->
+                features[i] = createFeature(schema, cells[i], random(streamSeed, i)));
+            return new FeatureDataset(Arrays.asList(Arrays.copyOf(features, cells.length)), schema);
+        }
+        double[] clusterCdf = kind == Kind.CLUSTERED_POINTS ? zipfCdf() : null;
+        IntStream.range(0, count).parallel().forEach(i -> {
+            SplittableRandom random = random(streamSeed, i);
+            Geometry geometry;
+            switch (kind) {
+                case UNIFORM_POINTS : geometry = uniformPoint(random); break;
+                case CLUSTERED_POINTS : geometry = clusteredPoint(random, streamSeed, clusterCdf); break;
+                case LONG_LINES : geometry = longLine(random); break;
+                default : geometry = complexPolygon(random, count);
+            }
+            features[i] = createFeature(schema, geometry, random);
+        });
+        return new FeatureDataset(Arrays.asList(features), schema);
+    }
+
+    private FeatureSchema createSchema() {
+        FeatureSchema schema = new FeatureSchema();
+        schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+        for (int i = 0 ; i < attributeTypes.length ; i++) {
+            schema.addAttribute(attributeTypes[i].toString() + "_" + i, attributeTypes[i]);
+        }
+        return schema;
+    }
+
+    private Feature createFeature(FeatureSchema schema, Geometry geometry,
+                                  SplittableRandom random) {
+        Object[] attributes = new Object[attributeTypes.length + 1];
+        attributes[0] = geometry;
+        for (int i = 0 ; i < attributeTypes.length ; i++) {
+            if (random.nextDouble() < nullRatio) continue;
+            AttributeType type = attributeTypes[i];
+            if (type == AttributeType.INTEGER) {
+                attributes[i+1] = random.nextInt(distinctValues);
+            } else if (type == AttributeType.DOUBLE) {
+                attributes[i+1] = gaussian(random) * 100.0;
+            } else if (type == AttributeType.STRING) {
+                attributes[i+1] = "V" + random.nextInt(distinctValues);
+            } else {
+                attributes[i+1] = new Date(DATE_ORIGIN + random.nextInt(distinctValues) * DAY);
+            }
+        }
+        Feature feature = new BasicFeature(schema);
+        feature.setAttributes(attributes);
+        return feature;
+    }
+
+    private Point uniformPoint(SplittableRandom random) {
+        return factory.createPoint(new Coordinate(
+            random.nextDouble() * extent, random.nextDouble() * extent));
+    }
+
+    private Point clusteredPoint(SplittableRandom random, long streamSeed, double[] clusterCdf) {
+        int cluster = Arrays.binarySearch(clusterCdf, random.nextDouble());
+        if (cluster < 0) cluster = Math.min(-cluster - 1, clusterCdf.length - 1);
+        // cluster centers only depend on the seed and the cluster number
+        SplittableRandom clusterRandom = random(~streamSeed, cluster);
+        double cx = clusterRandom.nextDouble() * extent;
+        double cy = clusterRandom.nextDouble() * extent;
+        double sigma = extent / Math.sqrt(clusters) / 8.0;
+        return factory.createPoint(new Coordinate(
+            clamp(cx + gaussian(random) * sigma), clamp(cy + gaussian(random) * sigma)));
+    }
+
+    // random walk with a general direction, so that lines cross about half
+    // of the extent
+    private LineString longLine(SplittableRandom random) {
+        Coordinate[] coordinates = new Coordinate[vertices];
+        double x = random.nextDouble() * extent;
+        double y = random.nextDouble() * extent;
+        double direction = random.nextDouble() * 2 * Math.PI;
+        double step = extent / 2 / vertices;
+        for (int i = 0 ; i < vertices ; i++) {
+            coordinates[i] = new Coordinate(x, y);
+            direction += gaussian(random) * 0.3;
+            x += step * Math.cos(direction);
+            y += step * Math.sin(direction);
+            // bounce on the borders of the extent
+            if (x < 0 || x > extent) { direction = Math.PI - direction; x = clamp(x); }
+            if (y < 0 || y > extent) { direction = -direction; y = clamp(y); }
+        }
+        return factory.createLineString(coordinates);
+    }
+
+    // star-shaped polygon (vertices sorted by angle around the center,
+    // hence always valid), sized so that polygons cover about the extent
+    private Polygon complexPolygon(SplittableRandom random, int count) {
+        double cx = random.nextDouble() * extent;
+        double cy = random.nextDouble() * extent;
+        double radius = extent / Math.sqrt(count) * 0.7;
+        Coordinate[] coordinates = new Coordinate[vertices + 1];
+        for (int i = 0 ; i < vertices ; i++) {
+            double angle = 2 * Math.PI * i / vertices;
+            double r = radius * (0.6 + 0.4 * random.nextDouble());
+            coordinates[i] = new Coordinate(cx + r * Math.cos(angle), cy + r * Math.sin(angle));
+        }
+        coordinates[vertices] = coordinates[0];
+        return factory.createPolygon(coordinates);
+    }
+
+    private Geometry[] voronoiCells(int count, long streamSeed) {
+        List<Coordinate> sites = new ArrayList<>(count);
+        for (int i = 0 ; i < count ; i++) {
+            SplittableRandom random = random(~streamSeed, i);
+            sites.add(new Coordinate(random.nextDouble() * extent, random.nextDouble() * extent));
+        }
+        VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+        builder.setSites(sites);
+        builder.setClipEnvelope(new Envelope(0, extent, 0, extent));
+        Geometry diagram = builder.getDiagram(factory);
+        Geometry[] cells = new Geometry[diagram.getNumGeometries()];
+        IntStream.range(0, cells.length).parallel().forEach(i -> {
+            Geometry cell = diagram.getGeometryN(i);
+            // densify cells having less than the required number of vertices
+            if (cell.getNumPoints() < vertices) {
+                cell = Densifier.densify(cell, cell.getLength() / vertices);
+            }
+            cells[i] = cell;
+        });
+        return cells;
+    }
+
+    // cumulative distribution of cluster sizes
+    private double[] zipfCdf() {
+        double[] cdf = new double[clusters];
+        double sum = 0;
+        for (int i = 0 ; i < clusters ; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        for (int i = 0 ; i < clusters ; i++) cdf[i] /= sum;
+        return cdf;
+    }
+
+    private double clamp(double v) {
+        return Math.max(0.0, Math.min(extent, v));
+    }
+
+    // independent random stream for the i-th item
+    private static SplittableRandom random(long seed, int i) {
+        return new SplittableRandom(mix(seed, i));
+    }
+
+    private static long mix(long seed, long i) {
+        long z = seed + (i + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // standard normal deviate (Box-Muller)
+    private static double gaussian(SplittableRandom random) {
+        double u = 1.0 - random.nextDouble();
+        return Math.sqrt(-2.0 * Math.log(u)) * Math.cos(2 * Math.PI * random.nextDouble());
+    }
+
+    /**
+     * Write a generated dataset to a shapefile or a jml file.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String,String> options = new HashMap<>();
+        for (int i = 0 ; i + 1 < args.length ; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i+1]);
+        }
+        String output = options.get("output");
+        if (output == null) {
+            System.err.println("Usage : SyntheticDataGenerator --output <file.shp|file.jml>\n" +
+                "    [--kind " + Arrays.toString(Kind.values()) + "] [--count n]\n" +
+                "    [--seed s] [--vertices n] [--clusters n] [--skew z]\n" +
+                "    [--attributes INTEGER,DOUBLE,STRING,DATE] [--distinct n] [--nulls ratio]");
+            System.exit(2);
+        }
+        SyntheticDataGenerator generator = new SyntheticDataGenerator(
+            Long.parseLong(options.getOrDefault("seed", "20261017")));
+        if (options.containsKey("vertices")) generator.setVertices(Integer.parseInt(options.get("vertices")));
+        if (options.containsKey("clusters")) generator.setClusters(Integer.parseInt(options.get("clusters")));
+        if (options.containsKey("skew")) generator.setSkew(Double.parseDouble(options.get("skew")));
+        if (options.containsKey("distinct")) generator.setDistinctValues(Integer.parseInt(options.get("distinct")));
+        if (options.containsKey("nulls")) generator.setNullRatio(Double.parseDouble(options.get("nulls")));
+        if (options.containsKey("attributes")) {
+            String[] names = options.get("attributes").split(",");
+            AttributeType[] types = new AttributeType[names.length];
+            for (int i = 0 ; i < names.length ; i++) {
+                types[i] = AttributeType.toAttributeType(names[i].trim());
+            }
+            generator.setAttributeTypes(types);
+        }
+        FeatureCollection collection = generator.generate(
+            Kind.valueOf(options.getOrDefault("kind", Kind.UNIFORM_POINTS.name())),
+            Integer.parseInt(options.getOrDefault("count", "100000")));
+        JUMPWriter writer = output.toLowerCase().endsWith(".jml") ?
+            new JMLWriter() : new ShapefileWriter();
+        DriverProperties properties = new DriverProperties();
+        properties.set(DataSource.FILE_KEY, output);
+        writer.write(collection, properties);
+    }
+
+}
@@ -0,0 +1,223 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import jdk.jfr.*;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * {@link AggregationEvents} implementation based on Java Flight Recorder
+ * events. Only loaded when jdk.jfr is available.
+ * Events are enabled and thresholds are set in JFR recording settings,
+ * ex. -XX:StartFlightRecording:settings=profile, or with a custom .jfc file
+ * referencing events by name (fr.michaelm.aggregation.*).
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class JfrAggregationEvents extends AggregationEvents {
+
+    private final String predicate;
+    private final String functions;
+
+    JfrAggregationEvents(String predicate, String functions) {
+        this.predicate = predicate;
+        this.functions = functions;
+    }
+
+    @Category({"OpenJUMP", "Aggregation"})
+    @StackTrace(false)
+    abstract static class AggregationEvent extends Event {
+        @Label("Predicate")
+        String predicate;
+        @Label("Functions")
+        String functions;
+    }
+
+    @Name("fr.michaelm.aggregation.Index")
+    @Label("Index Construction")
+    static class IndexEvent extends AggregationEvent {
+        @Label("Engine")
+        String engine;
+        @Label("Layer")
+        String layer;
+        @Label("Features")
+        int features;
+    }
+
+    @Name("fr.michaelm.aggregation.JoinBatch")
+    @Label("Join Batch")
+    static class BatchEvent extends AggregationEvent {
+        @Label("From")
+        int from;
+        @Label("To")
+        int to;
+    }
+
+    @Name("fr.michaelm.aggregation.SlowTarget")
+    @Label("Slow Target")
+    @Threshold("10 ms")
+    static class TargetEvent extends AggregationEvent {
+        @Label("Feature Id")
+        String fid;
+        @Label("Geometry Type")
+        String geometryType;
+        @Label("Vertices")
+        int vertices;
+        @Label("Candidates")
+        int candidates;
+        @Label("Hits")
+        int hits;
+    }
+
+    @Name("fr.michaelm.aggregation.Overlay")
+    @Label("Overlay")
+    @Threshold("1 ms")
+    static class OverlayEvent extends AggregationEvent {
+        @Label("Source Vertices")
+        int sourceVertices;
+        @Label("Target Vertices")
+        int targetVertices;
+    }
+
+    @Name("fr.michaelm.aggregation.Union")
+    @Label("Union")
+    @Threshold("1 ms")
+    static class UnionEvent extends AggregationEvent {
+        @Label("Feature Id")
+        String fid;
+        @Label("Function")
+        String function;
+        @Label("Result Vertices")
+        int vertices;
+    }
+
+    @Name("fr.michaelm.aggregation.LayerWrite")
+    @Label("Layer Write")
+    static class LayerWriteEvent extends AggregationEvent {
+        @Label("Layer")
+        String layer;
+        @Label("Features")
+        int features;
+    }
+
+    // begin a new event
+    private <T extends AggregationEvent> T begin(T event) {
+        event.begin();
+        return event;
+    }
+
+    // end event and return true if it must be committed
+    private boolean end(AggregationEvent event) {
+        event.end();
+        if (!event.shouldCommit()) return false;
+        event.predicate = predicate;
+        event.functions = functions;
+        return true;
+    }
+
+    @Override
+    Object beginIndex() { return begin(new IndexEvent()); }
+
+    @Override
+    void commitIndex(Object event, String engine, String layer, int features) {
+        IndexEvent e = (IndexEvent)event;
+        if (end(e)) {
+            e.engine = engine;
+            e.layer = layer;
+            e.features = features;
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginBatch() { return begin(new BatchEvent()); }
+
+    @Override
+    void commitBatch(Object event, int from, int to) {
+        BatchEvent e = (BatchEvent)event;
+        if (end(e)) {
+            e.from = from;
+            e.to = to;
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginTarget() { return begin(new TargetEvent()); }
+
+    @Override
+    void commitTarget(Object event, Object fid, Geometry target, int candidates, int hits) {
+        TargetEvent e = (TargetEvent)event;
+        if (end(e)) {
+            e.fid = String.valueOf(fid);
+            e.geometryType = target.getGeometryType();
+            e.vertices = target.getNumPoints();
+            e.candidates = candidates;
+            e.hits = hits;
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginOverlay() { return begin(new OverlayEvent()); }
+
+    @Override
+    void commitOverlay(Object event, Geometry source, Geometry target) {
+        OverlayEvent e = (OverlayEvent)event;
+        if (end(e)) {
+            e.sourceVertices = source.getNumPoints();
+            e.targetVertices = target.getNumPoints();
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginUnion() { return begin(new UnionEvent()); }
+
+    @Override
+    void commitUnion(Object event, Object fid, String function, Geometry result) {
+        UnionEvent e = (UnionEvent)event;
+        if (end(e)) {
+            e.fid = String.valueOf(fid);
+            e.function = function;
+            e.vertices = result == null ? 0 : result.getNumPoints();
+            e.commit();
+        }
+    }
+
+    @Override
+    Object beginLayerWrite() { return begin(new LayerWriteEvent()); }
+
+    @Override
+    void commitLayerWrite(Object event, String layer, int features) {
+        LayerWriteEvent e = (LayerWriteEvent)event;
+        if (end(e)) {
+            e.layer = layer;
+            e.features = features;
+            e.commit();
+        }
+    }
+
+}
@@ -32,17 +32,23 @@ import com.vividsolutions.jump.workbench.plugin.MultiEnableCheck;
 import com.vividsolutions.jump.workbench.plugin.PlugInContext;
 import com.vividsolutions.jump.workbench.plugin.ThreadedBasePlugIn;
 import com.vividsolutions.jump.workbench.ui.GUIUtil;
+import com.vividsolutions.jump.workbench.ui.HTMLFrame;
 import com.vividsolutions.jump.workbench.ui.MenuNames;
 import com.vividsolutions.jump.workbench.ui.MultiInputDialog;
 import fr.michaelm.jump.plugin.aggregation.function.*;
 import org.locationtech.jts.geom.Envelope;
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.index.strtree.STRtree;
 
 import javax.swing.*;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This plugin makes it possible to aggregate attribute information of one layer
@@ -60,6 +66,30 @@ import java.util.List;
  * geometry area.
  */
 // History
+// 2.1.0 (2026-10-17) process target features in parallel (fork-join)
+//                    use prepared geometries to evaluate spatial predicates
+//                    aggregate values with streaming accumulators
+//                    compute several aggregations in a single pass
+//                    reuse source layer index between runs
+//                    index the target layer when it is cheaper (join planner)
+//                    add a dual-tree join engine
+//                    add a plane-sweep join engine for points and small envelopes
+//                    move the aggregation out of the plugin (AggregationEngine)
+//                    add a command line runner
+//                    report timings and counters of the run in the output frame
+//                    emit flight recorder events
+//                    clip only accepted candidates, skip overlay of covered candidates
+//                    fix within distance candidate search, index target segments
+//                    join point sources and polygon targets with point locators
+//                    index point sources in a packed KD-tree
+//                    extract numeric source attributes into columns
+//                    cache length and area of source features
+//                    aggregate on selected target (and source) features only
+//                    add aggregated attributes to target features in place (undoable)
+//                    table output (target id and aggregated values)
+//                    tiled aggregation of layers larger than the heap (command line)
+//                    live update of the result while the source layer is edited
+//                    cache results of aggregations on unchanged layers
 // 2.0.1 (2022-08-27) change properties files to UTF-8
 // 2.0.0 (2021-08-21) upgrade i18n management and align version number to OpenJUMP'2
 // 1.0.0 (2021-04-05) refactoring for java8 / OpenJUMP2 / jts1.18
@@ -83,12 +113,21 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
     private static String IGNORE_NULL;
     private static String ATTRIBUTE;
     private static String FUNCTION;
+    private static String OTHER_AGGREGATIONS;
 
     private static String LENGTH;
     private static String AREA;
 
     
     private static String NEW_LAYER;
+    private static String IN_PLACE;
+    private static String TABLE;
+    private static String LIVE;
+    private static String SELECTED_TARGETS;
+    private static String SELECTED_SOURCES;
+    private static String THREADS;
+    private static String JOIN_ENGINE;
+    private static String DETAILED_TIMING;
 
     private Layer srcLayer, tgtLayer;
     private FeatureSchema srcSchema;
@@ -106,7 +145,19 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
     private boolean ignore_null = true;
     private AggregationFunction function =
         AggregationFunction.getFunction(i18n.get("function.Count"));
+    private String other_aggregations = "";
     private boolean new_layer = false;
+    private boolean in_place = false;
+    private boolean table = false;
+    private boolean live = false;
+    private boolean selected_targets = false;
+    private boolean selected_sources = false;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private JoinEngine join_engine = JoinEngine.NESTED_LOOP;
+    private boolean detailed_timing = false;
+
+    private final SourceIndexCache indexCache = new SourceIndexCache();
+    private final ResultCache resultCache = new ResultCache();
 
     public AggregatePlugIn() {
     }
@@ -125,9 +176,18 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
         IGNORE_NULL  = i18n.get("ignore-null");
         ATTRIBUTE    = i18n.get("attribute");
         FUNCTION     = i18n.get("function");
+        OTHER_AGGREGATIONS = i18n.get("other-aggregations");
         LENGTH       = i18n.get("length");
         AREA         = i18n.get("area");
         NEW_LAYER    = i18n.get("new-layer");
+        IN_PLACE     = i18n.get("in-place");
+        TABLE        = i18n.get("table");
+        LIVE         = i18n.get("live");
+        SELECTED_TARGETS = i18n.get("selected-targets");
+        SELECTED_SOURCES = i18n.get("selected-sources");
+        THREADS      = i18n.get("threads");
+        JOIN_ENGINE  = i18n.get("join-engine");
+        DETAILED_TIMING = i18n.get("detailed-timing");
 
 
         context.getFeatureInstaller().addMainMenuPlugin(
@@ -163,6 +223,11 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
         dialog.addLayerComboBox(TGT_LAYER, tgtLayer, null, context.getLayerManager());
             
         dialog.addCheckBox(NEW_LAYER, new_layer, "");
+        dialog.addCheckBox(IN_PLACE, in_place, i18n.get("in-place-tooltip"));
+        dialog.addCheckBox(TABLE, table, i18n.get("table-tooltip"));
+        dialog.addCheckBox(LIVE, live, i18n.get("live-tooltip"));
+        dialog.addCheckBox(SELECTED_TARGETS, selected_targets, "");
+        dialog.addCheckBox(SELECTED_SOURCES, selected_sources, "");
 
         // Choose Spatial predicate
         final JComboBox<String> jcb_relation =
@@ -187,6 +252,13 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
             dialog.addComboBox(FUNCTION, function.getName(),
                 getFunctions(srcSchema.getAttributeType(srcSchema.getAttributeIndex(attribute))), "");
 
+        dialog.addTextField(OTHER_AGGREGATIONS, other_aggregations, 24, null,
+            i18n.get("other-aggregations-tooltip"));
+
+        dialog.addIntegerField(THREADS, threads, 4, "");
+        dialog.addComboBox(JOIN_ENGINE, join_engine.getName(), JoinEngine.getNames(), "");
+        dialog.addCheckBox(DETAILED_TIMING, detailed_timing, i18n.get("detailed-timing-tooltip"));
+
         dialog.setSideBarImage(createSideBarImage());
         dialog.setSideBarDescription(getDescription());
 
@@ -299,7 +371,22 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
             if (attribute.startsWith(srcGeometryName+".")) atype = AttributeType.DOUBLE;
             else atype = srcSchema.getAttributeType(srcSchema.getAttributeIndex(attribute));
             function = AggregationFunction.getFunction(dialog.getText(FUNCTION));
+            other_aggregations = dialog.getText(OTHER_AGGREGATIONS);
             new_layer = dialog.getBoolean(NEW_LAYER);
+            in_place = dialog.getBoolean(IN_PLACE);
+            table = dialog.getBoolean(TABLE);
+            live = dialog.getBoolean(LIVE);
+            selected_targets = dialog.getBoolean(SELECTED_TARGETS);
+            selected_sources = dialog.getBoolean(SELECTED_SOURCES);
+            threads = Math.max(1, dialog.getInteger(THREADS));
+            join_engine = JoinEngine.getEngine(dialog.getText(JOIN_ENGINE));
+            detailed_timing = dialog.getBoolean(DETAILED_TIMING);
+            String error = checkOtherAggregations();
+            if (error == null) error = checkLive();
+            if (error != null) {
+                context.getWorkbenchFrame().warnUser(error);
+                return false;
+            }
             return true;
         }
         else return false;
@@ -310,90 +397,316 @@ public class AggregatePlugIn extends ThreadedBasePlugIn {
         monitor.report(i18n.get("monitor.aggregation-of") +
             srcLayer.getName() + i18n.get("monitor.on") + tgtLayer.getName());
  
-        FeatureSchema tgtSchema = tgtLayer.getFeatureCollectionWrapper().getFeatureSchema();
-        int feature_count = tgtLayer.getFeatureCollectionWrapper().size();
- 
-        // Creation du schema pour la couche agrégée
-        FeatureSchema newSchema = tgtSchema.clone();
-        AttributeType aType;
-        if (attribute.equals(srcGeometryName)) aType = AttributeType.GEOMETRY;
-        else if (attribute.equals(srcGeometryName+"."+LENGTH)) aType = AttributeType.DOUBLE;
-        else if (attribute.equals(srcGeometryName+"."+AREA)) aType = AttributeType.DOUBLE;
-        else aType = srcSchema.getAttributeType(srcSchema.getAttributeIndex(attribute));
- 
-        // Special schema to aggregate geometry related information
-        FeatureSchema geometry_schema = new FeatureSchema();
-        geometry_schema.addAttribute(srcGeometryName, AttributeType.GEOMETRY);
-        FeatureSchema length_schema = new FeatureSchema();
-        length_schema.addAttribute(srcGeometryName+"."+LENGTH, AttributeType.DOUBLE);
-        FeatureSchema area_schema = new FeatureSchema();
-        area_schema.addAttribute(srcGeometryName+"."+AREA, AttributeType.DOUBLE);
- 
-        AttributeType returnType = function.getReturnAttributeType(aType);
-        String tgtAttributeName = attribute.replaceAll("^"+srcGeometryName+"(\\.)?","");
-        tgtAttributeName = tgtAttributeName.length()>0?"."+tgtAttributeName:tgtAttributeName;
-        if (returnType != AttributeType.GEOMETRY) {
-            newSchema.addAttribute(function.getName() + "_" +
-                srcLayer.getName() + tgtAttributeName, returnType);
+        List<AggregationSpec> specs = getAggregationSpecs();
+        AggregationEngine engine = new AggregationEngine(relation, gp_params, specs);
+        engine.setSourceName(srcLayer.getName());
+        engine.setIntersection(intersection);
+        engine.setThreads(threads);
+        engine.setJoinEngine(join_engine);
+        engine.setDetailedTiming(detailed_timing);
+        engine.setTableOutput(table);
+        // layer indexes are reused from previous runs if layers did not change
+        // (selections are indexed for this run only)
+        engine.setIndexProvider(new AggregationEngine.IndexProvider() {
+            public FeatureIndex getIndex(FeatureCollection collection) {
+                Layer layer = getLayer(collection);
+                return layer == null ? new FeatureIndex(collection) : indexCache.getIndex(layer);
+            }
+            public boolean isIndexed(FeatureCollection collection) {
+                Layer layer = getLayer(collection);
+                return layer != null && indexCache.isCached(layer);
+            }
+            public JoinPlanner.Statistics getStatistics(FeatureCollection collection) {
+                Layer layer = getLayer(collection);
+                return layer == null ?
+                    new JoinPlanner.Statistics(collection) : indexCache.getStatistics(layer);
+            }
+        });
+        FeatureCollection sources = srcLayer.getFeatureCollectionWrapper();
+        FeatureCollection targets = tgtLayer.getFeatureCollectionWrapper();
+        if (selected_targets) {
+            targets = getSelectedFeatures(context, tgtLayer);
+            if (targets.isEmpty()) {
+                context.getWorkbenchFrame().warnUser(i18n.get("no-selected-target"));
+                return;
+            }
+        }
+        // without source selection, only sources near selected targets are
+        // indexed and joined
+        if (selected_sources) sources = getSelectedFeatures(context, srcLayer);
+        else if (selected_targets) sources = getSourcesNear(targets);
+
+        AggregationEvents events = AggregationEvents.create(relation.getName(), specs.toString());
+        // results of whole layers written to a new layer are cached :
+        // selections are aggregated for this run only, and the other outputs
+        // modify the target layer, which invalidates its results
+        ResultCache.Key key = selected_targets || selected_sources || !(table || new_layer) ?
+            null : resultCache.getKey(srcLayer, tgtLayer, getCacheParameters(specs));
+        ResultCache.Result result = aggregate(engine, key, sources, targets, monitor);
+        if (result == null) return;
+        // results of a selection are always written in the target layer
+        if (!table && !new_layer && (in_place || selected_targets)) {
+            report(context, result.report);
+            LiveAggregation.stop(tgtLayer);
+            Object event = events.beginLayerWrite();
+            if (AppendAttributesCommand.canAppend(tgtLayer, result.schema)) {
+                execute(new AppendAttributesCommand(getName(), tgtLayer,
+                    targets.getFeatures(), result.values, result.schema), context);
+            } else {
+                replaceTargets(engine, targets.getFeatures(), result.values, result.schema);
+            }
+            events.commitLayerWrite(event, tgtLayer.getName(), targets.size());
+            return;
+        }
+        long t0 = System.nanoTime();
+        List<Feature> targetList = new ArrayList<>(targets.getFeatures());
+        FeatureSchema tgtSchema = targets.getFeatureSchema();
+        FeatureCollection newDataset =
+            new FeatureDataset(engine.getFeatureSchema(tgtSchema, result.schema));
+        Feature[] results = new Feature[targetList.size()];
+        for (int i = 0 ; i < results.length ; i++) {
+            results[i] = engine.createFeature(newDataset.getFeatureSchema(),
+                targetList.get(i), i, result.values[i]);
+            if (results[i] != null) newDataset.add(results[i]);
+        }
+        result.report.addWallTime(AggregationReport.Phase.OUTPUT, System.nanoTime() - t0);
+        result.report.setProperty("results", newDataset.size());
+        report(context, result.report);
+
+        Object event = events.beginLayerWrite();
+        String layerName;
+        Layer resultLayer;
+        if (table) {
+            layerName = tgtLayer.getName() + "_" + getOutputAttributeName(specs.get(0)) +
+                "_" + i18n.get("table-suffix");
+            resultLayer = context.getLayerManager().addLayer(StandardCategoryNames.RESULT,
+                layerName, newDataset);
+        } else if (new_layer) {
+            layerName = tgtLayer.getName() + "_" + getOutputAttributeName(specs.get(0));
+            resultLayer = context.getLayerManager().addLayer(StandardCategoryNames.RESULT,
+                layerName, newDataset);
+        } else {
+            layerName = tgtLayer.getName();
+            resultLayer = tgtLayer;
+            LiveAggregation.stop(tgtLayer);
+            tgtLayer.setFeatureCollection(newDataset);
+        }
+        events.commitLayerWrite(event, layerName, newDataset.size());
+        // results of a live aggregation are kept by target to be updated
+        // when sources are edited (see checkLive)
+        if (live) {
+            new LiveAggregation(engine, srcLayer, targetList, tgtSchema, results).start(resultLayer);
+        }
+    }
+
+    // aggregated values of targets, from the result cache if the same
+    // aggregation has already been computed on unchanged layers (key is null
+    // if the result must not be cached), or null if the task has been
+    // cancelled
+    private ResultCache.Result aggregate(AggregationEngine engine, ResultCache.Key key,
+                                         FeatureCollection sources, FeatureCollection targets,
+                                         TaskMonitor monitor) {
+        long start = System.nanoTime();
+        ResultCache.Result cached = key == null ? null : resultCache.get(key);
+        if (cached != null) {
+            AggregationReport report = new AggregationReport();
+            report.setProperty("cache", "hit");
+            report.setProperty("targets", targets.size());
+            report.setTotalTime(System.nanoTime() - start);
+            return new ResultCache.Result(cached.values, cached.schema, report);
+        }
+        Object[][] values = engine.aggregateValues(sources, targets, monitor);
+        if (values == null) return null;
+        ResultCache.Result result =
+            new ResultCache.Result(values, engine.getOutputSchema(), engine.getReport());
+        if (key != null) resultCache.put(key, result);
+        return result;
+    }
+
+    // parameters identifying the result of the aggregation in the cache
+    private String getCacheParameters(List<AggregationSpec> specs) {
+        StringBuilder sb = new StringBuilder(relation.getName());
+        if (relation.getParameterCount() > 0) sb.append(Arrays.toString(gp_params));
+        for (AggregationSpec spec : specs) {
+            sb.append(';').append(spec);
+        }
+        // table and new layer outputs are created from the same values
+        return sb.append(";intersection=").append(intersection)
+            .append(";source=").append(srcLayer.getName()).toString();
+    }
+
+    // write timings and counters of the run in the output frame
+    private void report(PlugInContext context, AggregationReport report) {
+        HTMLFrame out = context.getOutputFrame();
+        out.createNewDocument();
+        out.addHeader(1, i18n.get("aggregation-report"));
+        out.addHeader(2, srcLayer.getName() + i18n.get("monitor.on") + tgtLayer.getName());
+        for (Map.Entry<String,Object> entry : report.toMap().entrySet()) {
+            out.addField(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        context.getWorkbenchFrame().setStatusMessage(i18n.get("aggregation-report") +
+            " : " + report.getTotalNanos() / 1000000 + " ms");
+    }
+
+    // layer of one of the feature collections passed to the engine (null for
+    // a selection)
+    private Layer getLayer(FeatureCollection collection) {
+        if (collection == srcLayer.getFeatureCollectionWrapper()) return srcLayer;
+        if (collection == tgtLayer.getFeatureCollectionWrapper()) return tgtLayer;
+        return null;
+    }
+
+    // selected features of layer, in the order of their ids
+    private FeatureCollection getSelectedFeatures(PlugInContext context, Layer layer) {
+        List<Feature> list = new ArrayList<>(context.getLayerViewPanel()
+            .getSelectionManager().getFeaturesWithSelectedItems(layer));
+        list.sort(Comparator.comparingInt(Feature::getID));
+        return new FeatureDataset(list, layer.getFeatureCollectionWrapper().getFeatureSchema());
+    }
+
+    /**
+     * Return the source features which may be related to targets : those
+     * whose envelope intersects the envelope of a target, expanded by the
+     * distance parameter of the relation. The cached index of the source
+     * layer is used if there is one, so that the whole source layer is
+     * neither indexed nor scanned.
+     */
+    private FeatureCollection getSourcesNear(FeatureCollection targets) {
+        double distance = relation.getParameterCount() == 1 ? gp_params[0] : 0.0;
+        FeatureCollection sources = srcLayer.getFeatureCollectionWrapper();
+        List<Feature> list = new ArrayList<>();
+        if (indexCache.isCached(srcLayer)) {
+            FeatureIndex index = indexCache.getIndex(srcLayer);
+            // ids are positions in the layer : near sources keep layer order
+            BitSet ids = new BitSet(index.size());
+            for (Feature target : targets.getFeatures()) {
+                Envelope envelope = new Envelope(target.getGeometry().getEnvelopeInternal());
+                envelope.expandBy(distance);
+                index.query(envelope, ids::set);
+            }
+            for (int id = ids.nextSetBit(0) ; id >= 0 ; id = ids.nextSetBit(id + 1)) {
+                list.add(index.getFeature(id));
+            }
+        } else {
+            FeatureIndex targetIndex = new FeatureIndex(targets);
+            Envelope extent = new Envelope(targets.getEnvelope());
+            extent.expandBy(distance);
+            boolean[] near = new boolean[1];
+            for (Feature source : sources.query(extent)) {
+                Envelope envelope = new Envelope(source.getGeometry().getEnvelopeInternal());
+                envelope.expandBy(distance);
+                near[0] = false;
+                targetIndex.query(envelope, id -> near[0] = true);
+                if (near[0]) list.add(source);
+            }
         }
+        return new FeatureDataset(list, sources.getFeatureSchema());
+    }
 
+    /**
+     * Replace the target layer collection by a new dataset where targets
+     * are replaced by their aggregated feature (or removed if their
+     * aggregated values are null), and other features get null aggregated
+     * values. This is used when aggregated values cannot be appended to
+     * target features.
+     */
+    private void replaceTargets(AggregationEngine engine, List<Feature> targets,
+                                Object[][] values, FeatureSchema valuesSchema) {
+        FeatureSchema tgtSchema = tgtLayer.getFeatureCollectionWrapper().getFeatureSchema();
+        Map<Feature,Integer> indexMap = new IdentityHashMap<>();
+        for (int i = 0 ; i < values.length ; i++) {
+            indexMap.put(targets.get(i), i);
+        }
+        FeatureSchema newSchema = engine.getFeatureSchema(tgtSchema, valuesSchema);
         FeatureCollection newDataset = new FeatureDataset(newSchema);
-        
-        IndexedFeatureCollection ifc = new IndexedFeatureCollection(
-            srcLayer.getFeatureCollectionWrapper(), new STRtree());
-        int count = 0;
- 
-        // Main loop over target feature collection
         for (Feature feature : tgtLayer.getFeatureCollectionWrapper().getFeatures()) {
-            Geometry geometry = feature.getGeometry();
-            monitor.report(++count, feature_count, i18n.get("monitor.features"));
+            Integer index = indexMap.get(feature);
+            if (index != null) {
+                Feature result = engine.createFeature(newSchema, feature, index, values[index]);
+                if (result != null) newDataset.add(result);
+                continue;
+            }
             Feature newFeature = new BasicFeature(newSchema);
             for (int i = 0 ; i < tgtSchema.getAttributeCount() ; i++) {
                 newFeature.setAttribute(i, feature.getAttribute(i));
             }
-            Envelope queryEnvelope = feature.getGeometry().getEnvelopeInternal();
-            if (relation.getParameterCount()==1) queryEnvelope.expandBy(gp_params[0]);
-            List<?> candidates = ifc.query(feature.getGeometry().getEnvelopeInternal());
-            List<Feature> relatedFeatures = new ArrayList<>();
-            for (Object o : candidates) {
-                Feature f = (Feature)o;
-                Geometry g = intersection?
-                    f.getGeometry().intersection(geometry):
-                    f.getGeometry();
-                if (relation.isTrue(f.getGeometry(), feature.getGeometry(), gp_params)) {
-                    if (attribute.equals(srcGeometryName)) {
-                        f = new BasicFeature(geometry_schema);
-                        f.setGeometry(g);
-                    }
-                    else if (attribute.equals(srcGeometryName+"."+LENGTH)) {
-                        f = new BasicFeature(length_schema);
-                        f.setAttribute(srcGeometryName+"."+LENGTH, g.getLength());
-                    }
-                    else if (attribute.equals(srcGeometryName+"."+AREA)) {
-                        f = new BasicFeature(area_schema);
-                        f.setAttribute(srcGeometryName+"."+AREA, g.getArea());
-                    }
-                    relatedFeatures.add(f);
-                }
+            newDataset.add(newFeature);
+        }
+        tgtLayer.setFeatureCollection(newDataset);
+    }
+
+    /**
+     * Return the list of aggregations to compute : the one chosen with the
+     * attribute and function combo boxes, followed by other aggregations.
+     * Duplicate aggregations are removed.
+     */
+    private List<AggregationSpec> getAggregationSpecs() {
+        List<AggregationSpec> specs = new ArrayList<>();
+        specs.add(new AggregationSpec(attribute, function, ignore_null));
+        Set<String> names = new HashSet<>();
+        names.add(getOutputAttributeName(specs.get(0)));
+        for (AggregationSpec spec : AggregationSpec.parse(other_aggregations)) {
+            if (names.add(getOutputAttributeName(spec))) specs.add(spec);
+        }
+        return specs;
+    }
+
+    /**
+     * Check that other aggregations can be parsed and computed on the source
+     * layer, and return an error message, or null if they are valid.
+     */
+    private String checkOtherAggregations() {
+        List<AggregationSpec> specs;
+        try {
+            specs = AggregationSpec.parse(other_aggregations);
+        } catch (IllegalArgumentException e) {
+            return i18n.get("invalid-aggregation") + " : " + e.getMessage();
+        }
+        boolean geometryResult = function.getReturnAttributeType(
+            getInputType(attribute)) == AttributeType.GEOMETRY;
+        for (AggregationSpec spec : specs) {
+            AttributeType inputType = getInputType(spec.getAttribute());
+            AttributeType returnType = inputType == null ?
+                null : spec.getFunction().getReturnAttributeType(inputType);
+            if (returnType == null) {
+                return i18n.get("invalid-aggregation") + " : " + spec;
             }
-            Object agg = function.aggregate(relatedFeatures, attribute, ignore_null, null);
-            if (agg instanceof Geometry) {
-                if (((Geometry)agg).isEmpty()) newFeature = null;
-                else newFeature.setGeometry((Geometry)agg);
+            // only one aggregation can replace the target geometry
+            if (returnType == AttributeType.GEOMETRY) {
+                if (geometryResult) return i18n.get("invalid-aggregation") + " : " + spec;
+                geometryResult = true;
             }
-            else newFeature.setAttribute(function.getName() + "_" +
-                srcLayer.getName() + tgtAttributeName, agg);
-            if (newFeature != null) newDataset.add(newFeature);
         }
-        if (new_layer) {
-            context.getLayerManager().addLayer(StandardCategoryNames.RESULT,
-                tgtLayer.getName() + "_" + function.getName() + "_" +
-                srcLayer.getName() + tgtAttributeName, newDataset);
-        } else {
-            tgtLayer.setFeatureCollection(newDataset);
+        return null;
+    }
+
+    /**
+     * Check that the result can be updated live if the live option is
+     * selected, and return an error message, or null if it can : results
+     * appended to the targets, aggregations of selected sources and
+     * aggregations of a layer on itself are not updated live.
+     */
+    private String checkLive() {
+        if (live && (selected_sources || srcLayer == tgtLayer ||
+            (!table && !new_layer && (in_place || selected_targets)))) {
+            return i18n.get("live-unavailable");
         }
+        return null;
     }
- 
+
+    /**
+     * Return the AttributeType of source attribute values (including
+     * geometry, geometry length and geometry area pseudo-attributes), or
+     * null if the source layer has no such attribute.
+     */
+    private AttributeType getInputType(String attribute) {
+        return AggregationEngine.getInputType(srcSchema, attribute);
+    }
+
+    private String getOutputAttributeName(AggregationSpec spec) {
+        return AggregationEngine.getOutputAttributeName(srcLayer.getName(), srcSchema, spec);
+    }
+
     private List<String> getAttributes() {
         List<String> list = new ArrayList<>();
         list.add(srcGeometryName);
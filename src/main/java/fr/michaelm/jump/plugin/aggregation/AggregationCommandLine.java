@@ -0,0 +1,293 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.I18N;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.io.*;
+import com.vividsolutions.jump.io.datasource.DataSource;
+import com.vividsolutions.jump.task.DummyTaskMonitor;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Command line runner of the {@link AggregationEngine}, to run aggregations
+ * without the OpenJUMP workbench (batch jobs on a headless server).
+ * Files are read and written with OpenJUMP readers and writers (shapefile or
+ * jml, chosen from the file extension). OpenJUMP jars must be in the
+ * classpath, ex.
+ * <pre>
+ * java -Djava.awt.headless=true -cp "OpenJUMP/lib/*:aggregation.jar" \
+ *     fr.michaelm.jump.plugin.aggregation.AggregationCommandLine \
+ *     --source cities.shp --target countries.shp --output result.shp \
+ *     --relation Intersects --aggregate "Sum(population);Count(GEOMETRY)"
+ * </pre>
+ * Predicates may be given by their key (ex. WithinDistance) or by their
+ * localized name. Aggregation functions are given by their localized name
+ * (see {@link AggregationSpec#parse(String)}).
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AggregationCommandLine {
+
+    private static final I18N i18n = I18N.getInstance("fr.michaelm.jump.plugin.aggregation");
+
+    private static final String USAGE =
+        "Usage : AggregationCommandLine\n" +
+        "    --source <file>       source layer (.shp or .jml)\n" +
+        "    --target <file>       target layer (.shp or .jml)\n" +
+        "    --output <file>       result layer (.shp or .jml)\n" +
+        "    --relation <name>     spatial relation (default Intersects)\n" +
+        "    --param <value>       relation parameter (distance)\n" +
+        "    --aggregate <specs>   function(attribute) separated by ;\n" +
+        "                          (function(attribute)+null aggregates null values)\n" +
+        "    --intersection        aggregate intersections of geometries\n" +
+        "    --table               output target ids and aggregated values only\n" +
+        "    --target-id <name>    target attribute written as target id of a table\n" +
+        "                          (default : record index of the target, from 0,\n" +
+        "                          required with --tiles)\n" +
+        "    --threads <n>         number of threads (default : number of processors)\n" +
+        "    --engine <name>       " + JoinEngine.NESTED_LOOP + " (default), " +
+                                       JoinEngine.DUAL_TREE + " or " +
+                                       JoinEngine.PLANE_SWEEP + "\n" +
+        "    --tiles <c>x<r>       aggregate tile by tile, writing one output\n" +
+        "                          file per tile (<output>_<column>_<row>)\n" +
+        "    --extent <minx,miny,maxx,maxy>\n" +
+        "                          extent of the tiles (default : target extent)\n" +
+        "    --report <file>       write timings and counters (json)\n" +
+        "    --detailed-timing     split the join time of the report into query,\n" +
+        "                          predicate, overlay and aggregation times";
+
+    public static void main(String[] args) {
+        try {
+            run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    static void run(String[] args) throws Exception {
+        Map<String,String> options = parseOptions(args);
+        String source = getRequired(options, "source");
+        String target = getRequired(options, "target");
+        String output = getRequired(options, "output");
+
+        String relationName = options.getOrDefault("relation", "Intersects");
+        GeometryPredicate relation = GeometryPredicate.getPredicate(relationName);
+        if (relation == null) {
+            relation = GeometryPredicate.getPredicate(i18n.get("predicate." + relationName));
+        }
+        if (relation == null) {
+            throw new IllegalArgumentException("Unknown relation : " + relationName);
+        }
+        double[] params = new double[]{
+            Double.parseDouble(options.getOrDefault("param", "0"))};
+        List<AggregationSpec> specs = AggregationSpec.parse(getRequired(options, "aggregate"));
+
+        AggregationEngine engine = new AggregationEngine(relation, params, specs);
+        engine.setSourceName(getBaseName(source));
+        engine.setIntersection(options.containsKey("intersection"));
+        engine.setTableOutput(options.containsKey("table"));
+        engine.setTargetIdAttribute(options.get("target-id"));
+        engine.setThreads(Integer.parseInt(options.getOrDefault("threads",
+            Integer.toString(Runtime.getRuntime().availableProcessors()))));
+        engine.setJoinEngine(JoinEngine.valueOf(
+            options.getOrDefault("engine", JoinEngine.NESTED_LOOP.name()).toUpperCase(Locale.ROOT)));
+
+        String report = options.get("report");
+        engine.setDetailedTiming(options.containsKey("detailed-timing"));
+
+        AggregationEvents events = AggregationEvents.create(relation.getName(), specs.toString());
+        AggregationReport aggregationReport;
+        if (options.containsKey("tiles")) {
+            aggregationReport = runTiled(engine, options, source, target, output, events);
+        } else {
+            FeatureCollection sources = read(source);
+            FeatureCollection targets = read(target);
+            FeatureCollection result = engine.aggregate(sources, targets, new DummyTaskMonitor());
+            write(result, output, events);
+            aggregationReport = engine.getReport();
+        }
+        System.err.print(aggregationReport);
+        if (report != null) {
+            Files.write(Paths.get(report),
+                aggregationReport.toJson().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // aggregate tile by tile, reading the part of the source and target
+    // files intersecting each tile, and writing one output file per tile
+    // (shapefiles are read record by record, other files are loaded by each
+    // read)
+    private static AggregationReport runTiled(AggregationEngine engine,
+                                              Map<String,String> options,
+                                              String source, String target, String output,
+                                              AggregationEvents events) throws Exception {
+        String[] grid = options.get("tiles").toLowerCase(Locale.ROOT).split("x");
+        if (grid.length != 2) {
+            throw new IllegalArgumentException("Invalid tiles : " + options.get("tiles"));
+        }
+        String base = output.substring(0, output.length() - getExtension(output).length() - 1);
+        String extension = getExtension(output);
+        try (TiledAggregation.FeatureReader sources = getFeatureReader(source);
+             TiledAggregation.FeatureReader targets = getFeatureReader(target)) {
+            Envelope extent = options.containsKey("extent") ?
+                parseExtent(options.get("extent")) : getExtent(target, targets);
+            TiledAggregation tiled = new TiledAggregation(engine, extent,
+                Integer.parseInt(grid[0].trim()), Integer.parseInt(grid[1].trim()));
+            tiled.run(sources, targets, (column, row, result) -> {
+                if (!result.isEmpty()) {
+                    write(result, base + "_" + column + "_" + row + "." + extension, events);
+                }
+            }, new DummyTaskMonitor());
+            return tiled.getReport();
+        }
+    }
+
+    private static TiledAggregation.FeatureReader getFeatureReader(String path)
+            throws Exception {
+        if (getExtension(path).equals("shp")) return new ShapefileFeatureReader(path);
+        return envelope -> read(path, envelope);
+    }
+
+    private static void write(FeatureCollection result, String path,
+                              AggregationEvents events) throws Exception {
+        Object event = events.beginLayerWrite();
+        getWriter(path).write(result, getDriverProperties(path));
+        events.commitLayerWrite(event, path, result.size());
+    }
+
+    private static Envelope parseExtent(String extent) {
+        String[] values = extent.split(",");
+        if (values.length != 4) {
+            throw new IllegalArgumentException("Invalid extent : " + extent);
+        }
+        return new Envelope(
+            Double.parseDouble(values[0].trim()), Double.parseDouble(values[2].trim()),
+            Double.parseDouble(values[1].trim()), Double.parseDouble(values[3].trim()));
+    }
+
+    // extent of a layer, read from the header of a shapefile (the layer is
+    // read once for other formats)
+    private static Envelope getExtent(String path, TiledAggregation.FeatureReader reader)
+            throws Exception {
+        if (reader instanceof ShapefileFeatureReader) {
+            return ((ShapefileFeatureReader)reader).getExtent();
+        }
+        Envelope extent = new Envelope();
+        for (Feature feature : read(path).getFeatures()) {
+            extent.expandToInclude(feature.getGeometry().getEnvelopeInternal());
+        }
+        return extent;
+    }
+
+    // options are --name value, or --name for boolean options
+    private static Map<String,String> parseOptions(String[] args) {
+        Map<String,String> options = new HashMap<>();
+        for (int i = 0 ; i < args.length ; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument : " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (name.equals("intersection") || name.equals("table") ||
+                name.equals("detailed-timing")) options.put(name, "true");
+            else if (i + 1 < args.length) options.put(name, args[++i]);
+            else throw new IllegalArgumentException("Missing value for " + args[i]);
+        }
+        return options;
+    }
+
+    private static String getRequired(Map<String,String> options, String name) {
+        String value = options.get(name);
+        if (value == null) throw new IllegalArgumentException("Missing option --" + name);
+        return value;
+    }
+
+    private static FeatureCollection read(String path) throws Exception {
+        JUMPReader reader = getExtension(path).equals("jml") ?
+            new JMLReader() : new ShapefileReader();
+        FeatureCollection collection = reader.read(getDriverProperties(path));
+        if (reader.getExceptions() != null && !reader.getExceptions().isEmpty()) {
+            throw reader.getExceptions().iterator().next();
+        }
+        return collection;
+    }
+
+    // features of the file intersecting envelope, or with an empty geometry
+    // if envelope is a null Envelope (OpenJUMP readers load the whole file,
+    // which is released as soon as it has been filtered)
+    private static FeatureCollection read(String path, Envelope envelope) throws Exception {
+        FeatureCollection collection = read(path);
+        FeatureCollection filtered = new FeatureDataset(collection.getFeatureSchema());
+        for (Feature feature : collection.getFeatures()) {
+            Envelope featureEnvelope = feature.getGeometry().getEnvelopeInternal();
+            if (envelope.isNull() ? featureEnvelope.isNull() : envelope.intersects(featureEnvelope)) {
+                filtered.add(feature);
+            }
+        }
+        return filtered;
+    }
+
+    private static JUMPWriter getWriter(String path) {
+        return getExtension(path).equals("jml") ? new JMLWriter() : new ShapefileWriter();
+    }
+
+    private static DriverProperties getDriverProperties(String path) {
+        String extension = getExtension(path);
+        if (!extension.equals("shp") && !extension.equals("jml")) {
+            throw new IllegalArgumentException("Unsupported file format : " + path);
+        }
+        DriverProperties properties = new DriverProperties();
+        properties.set(DataSource.FILE_KEY, path);
+        return properties;
+    }
+
+    private static String getExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        return dot < 0 ? "" : path.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    private static String getBaseName(String path) {
+        String name = new File(path).getName();
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+}
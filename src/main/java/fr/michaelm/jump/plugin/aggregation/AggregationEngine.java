@@ -0,0 +1,1277 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.I18N;
+import com.vividsolutions.jump.feature.*;
+import com.vividsolutions.jump.task.TaskMonitor;
+import fr.michaelm.jump.plugin.aggregation.AggregationReport.Phase;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.algorithm.locate.PointOnGeometryLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.Boundable;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.function.Supplier;
+
+/**
+ * Aggregates attributes of a source feature collection on the features of a
+ * target feature collection related to them by a {@link GeometryPredicate}.
+ * The engine does not depend on the workbench : it is used by the plugin,
+ * and can be used by scripts or from the command line
+ * ({@link AggregationCommandLine}).
+ * <p>
+ * The result contains one feature per target feature, with the target
+ * attributes plus one attribute per aggregation (an aggregation returning a
+ * geometry replaces the target geometry instead, and target features for
+ * which it returns an empty geometry are removed).
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AggregationEngine {
+
+    private static final I18N i18n = I18N.getInstance("fr.michaelm.jump.plugin.aggregation");
+
+    private static final String LENGTH = i18n.get("length");
+    private static final String AREA = i18n.get("area");
+
+    // names of the joined collections in index events
+    private static final String SOURCE = "source";
+    private static final String TARGET = "target";
+
+    /** Name of the geometry attribute of a table output. */
+    public static final String GEOMETRY = "GEOMETRY";
+    /**
+     * Name of the target id attribute of a table output : the value of the
+     * target id attribute (see {@link #setTargetIdAttribute}), or the
+     * position of the target in the target collection (0 for the first
+     * target, which is its record index in the file it was read from).
+     */
+    public static final String TARGET_FID = "TARGET_FID";
+
+    // minimum number of sources accumulated by a SourceRangeTask
+    private static final int SOURCE_RANGE = 1024;
+
+    /**
+     * Provides the spatial indexes of the feature collections to join, and
+     * the statistics used by the join planner. The default provider builds
+     * a new index and new statistics for each run.
+     */
+    interface IndexProvider {
+        FeatureIndex getIndex(FeatureCollection collection);
+        boolean isIndexed(FeatureCollection collection);
+        default JoinPlanner.Statistics getStatistics(FeatureCollection collection) {
+            return new JoinPlanner.Statistics(collection);
+        }
+    }
+
+    private final GeometryPredicate relation;
+    private final double[] gp_params;
+    private final List<AggregationSpec> specs;
+
+    private String sourceName = "";
+    private boolean intersection = false;
+    private int threads = 1;
+    private JoinEngine joinEngine = JoinEngine.NESTED_LOOP;
+    private boolean detailedTiming = false;
+    private boolean tableOutput = false;
+    private String targetIdAttribute = null;
+
+    // geometry of the features created from aggregated values for a table
+    // output
+    private final Geometry emptyGeometry = new GeometryFactory().createGeometryCollection();
+
+    private AggregationReport report;
+    private FeatureSchema outputSchema;
+    private AggregationEvents events;
+    private IndexProvider indexProvider = new IndexProvider() {
+        public FeatureIndex getIndex(FeatureCollection collection) {
+            return new FeatureIndex(collection);
+        }
+        public boolean isIndexed(FeatureCollection collection) {
+            return false;
+        }
+    };
+
+    /**
+     * @param relation spatial relation between target and source features
+     * @param params parameters of the relation (distance for WithinDistance)
+     * @param specs aggregations to compute (duplicate aggregations are ignored)
+     */
+    public AggregationEngine(GeometryPredicate relation, double[] params,
+                             List<AggregationSpec> specs) {
+        if (specs.isEmpty()) throw new IllegalArgumentException("No aggregation");
+        this.relation = relation;
+        this.gp_params = params.clone();
+        Map<String,AggregationSpec> map = new LinkedHashMap<>();
+        for (AggregationSpec spec : specs) map.putIfAbsent(spec.toString(), spec);
+        this.specs = new ArrayList<>(map.values());
+    }
+
+    /**
+     * Set the source name used in output attribute names
+     * (ex. Sum_cities.population).
+     */
+    public void setSourceName(String sourceName) {
+        this.sourceName = sourceName;
+    }
+
+    /**
+     * If true, geometry, length and area values are computed on the
+     * intersection of the source geometry with the target geometry.
+     */
+    public void setIntersection(boolean intersection) {
+        this.intersection = intersection;
+    }
+
+    /**
+     * Set the number of worker threads (1 = process in the calling thread).
+     */
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setJoinEngine(JoinEngine joinEngine) {
+        this.joinEngine = joinEngine;
+    }
+
+    /**
+     * If true, the join phase of the report is split into query, predicate,
+     * overlay and aggregation times (which costs a few calls to
+     * System.nanoTime() per candidate).
+     */
+    public void setDetailedTiming(boolean detailedTiming) {
+        this.detailedTiming = detailedTiming;
+    }
+
+    /**
+     * If true, aggregated features only contain the id of their target
+     * feature ({@link #TARGET_FID} attribute) and aggregated values, and
+     * have an empty geometry (unless a geometry aggregation replaces it),
+     * instead of a copy of all target attributes.
+     */
+    public void setTableOutput(boolean tableOutput) {
+        this.tableOutput = tableOutput;
+    }
+
+    /**
+     * Set the target attribute copied to the {@link #TARGET_FID} attribute
+     * of a table output, instead of the position of the target in the
+     * target collection (null to use positions).
+     */
+    public void setTargetIdAttribute(String targetIdAttribute) {
+        this.targetIdAttribute = targetIdAttribute;
+    }
+
+    boolean isTableOutput() {
+        return tableOutput;
+    }
+
+    String getTargetIdAttribute() {
+        return targetIdAttribute;
+    }
+
+    void setIndexProvider(IndexProvider indexProvider) {
+        this.indexProvider = indexProvider;
+    }
+
+    /**
+     * Aggregate sources attributes on targets.
+     * @return the aggregated feature collection, or null if the task has
+     * been cancelled
+     */
+    public FeatureCollection aggregate(FeatureCollection sources,
+                                       FeatureCollection targets,
+                                       TaskMonitor monitor) {
+        long start = System.nanoTime();
+        Feature[] results = aggregateByTarget(sources, targets, monitor);
+        if (results == null) return null;
+
+        long t0 = System.nanoTime();
+        FeatureCollection newDataset = new FeatureDataset(outputSchema);
+        for (Feature newFeature : results) {
+            if (newFeature != null) newDataset.add(newFeature);
+        }
+        report.addWallTime(Phase.OUTPUT, System.nanoTime() - t0);
+        report.setProperty("results", newDataset.size());
+        report.setTotalTime(System.nanoTime() - start);
+        return newDataset;
+    }
+
+    /**
+     * Return the schema of the features aggregated by the last run of this
+     * engine : target schema (or geometry and {@link #TARGET_FID} for a
+     * table output) plus one attribute per aggregation, except for geometry
+     * aggregations which replace target geometries (null if the engine has
+     * not been run yet). After {@link #aggregateValues}, return the schema of
+     * aggregated values : a {@link #GEOMETRY} attribute followed by one
+     * attribute per aggregation (except geometry aggregations).
+     */
+    public FeatureSchema getOutputSchema() {
+        return outputSchema;
+    }
+
+    /**
+     * Aggregate sources attributes on targets, and return the aggregated
+     * feature of each target (see {@link #getOutputSchema()}), by position of
+     * the target in targets.getFeatures(). The aggregated feature of a
+     * target is null if an aggregated geometry is empty.
+     * @return aggregated features, or null if the task has been cancelled
+     */
+    public Feature[] aggregateByTarget(FeatureCollection sources,
+                                       FeatureCollection targets,
+                                       TaskMonitor monitor) {
+        return aggregateByTarget(sources, targets, monitor, false);
+    }
+
+    /**
+     * Aggregate sources attributes on targets, and return the aggregated
+     * values of each target, by position of the target in
+     * targets.getFeatures(), without copying target attributes. The values
+     * of a target are ordered as the attributes of {@link #getOutputSchema()}
+     * (aggregated geometry first, null if no aggregation returns a geometry),
+     * and are null if an aggregated geometry is empty.
+     * @return aggregated values, or null if the task has been cancelled
+     */
+    public Object[][] aggregateValues(FeatureCollection sources,
+                                      FeatureCollection targets,
+                                      TaskMonitor monitor) {
+        Feature[] results = aggregateByTarget(sources, targets, monitor, true);
+        return results == null ? null : getValues(results);
+    }
+
+    // attributes of aggregated features holding values only
+    private static Object[][] getValues(Feature[] results) {
+        Object[][] values = new Object[results.length][];
+        for (int i = 0 ; i < results.length ; i++) {
+            if (results[i] != null) values[i] = results[i].getAttributes();
+        }
+        return values;
+    }
+
+    /**
+     * Return the schema of the features created by {@link #createFeature}
+     * from targets of tgtSchema and aggregated values of valuesSchema : the
+     * target schema (or geometry and {@link #TARGET_FID} for a table output)
+     * followed by aggregated attributes.
+     */
+    public FeatureSchema getFeatureSchema(FeatureSchema tgtSchema, FeatureSchema valuesSchema) {
+        FeatureSchema schema;
+        if (tableOutput) {
+            schema = new FeatureSchema();
+            schema.addAttribute(GEOMETRY, AttributeType.GEOMETRY);
+            schema.addAttribute(TARGET_FID, getTargetIdType(tgtSchema));
+        } else {
+            schema = (FeatureSchema)tgtSchema.clone();
+        }
+        for (int i = 1 ; i < valuesSchema.getAttributeCount() ; i++) {
+            schema.addAttribute(valuesSchema.getAttributeName(i), valuesSchema.getAttributeType(i));
+        }
+        return schema;
+    }
+
+    /**
+     * Return the aggregated feature of target, of schema (see
+     * {@link #getFeatureSchema}), from its aggregated values (see
+     * {@link #aggregateValues}), or null if values is null.
+     * @param index position of target in the target collection
+     */
+    public Feature createFeature(FeatureSchema schema, Feature target, int index,
+                                 Object[] values) {
+        if (values == null) return null;
+        Feature feature = new BasicFeature(schema);
+        if (tableOutput) {
+            feature.setGeometry(emptyGeometry);
+            feature.setAttribute(TARGET_FID, getTargetId(target, index));
+        } else {
+            int count = schema.getAttributeCount() - values.length + 1;
+            for (int i = 0 ; i < count ; i++) feature.setAttribute(i, target.getAttribute(i));
+        }
+        setValues(feature, values);
+        return feature;
+    }
+
+    /**
+     * Set the aggregated values of feature, created by {@link #createFeature},
+     * to values : the geometry is only replaced by an aggregated geometry.
+     */
+    public void setValues(Feature feature, Object[] values) {
+        // index of the first aggregated attribute in feature schema
+        int from = feature.getSchema().getAttributeCount() - values.length + 1;
+        if (values[0] != null) feature.setGeometry((Geometry)values[0]);
+        for (int i = 1 ; i < values.length ; i++) feature.setAttribute(from + i - 1, values[i]);
+    }
+
+    // aggregated features of targets, holding only aggregated values if
+    // values is true
+    private Feature[] aggregateByTarget(FeatureCollection sources,
+                                        FeatureCollection targets,
+                                        TaskMonitor monitor, boolean values) {
+        long start = System.nanoTime();
+        TargetAggregator aggregator = createAggregator(sources.getFeatureSchema(),
+            targets.getFeatureSchema(), sources.size(), targets.size(), values);
+        double distance = getQueryDistance();
+        Feature[] results;
+        if (joinEngine == JoinEngine.DUAL_TREE) {
+            FeatureIndex sourceIndex = index(SOURCE, () -> indexProvider.getIndex(sources));
+            FeatureIndex targetIndex = index(TARGET, () -> indexProvider.getIndex(targets));
+            extractColumns(aggregator, sourceIndex);
+            long t0 = System.nanoTime();
+            DualTreeJoin join = new DualTreeJoin(targetIndex, sourceIndex, distance);
+            // each worker joins a subtree of the target tree (subtrees are
+            // small enough to bound the candidate pairs buffered by a join)
+            List<Boundable> partitions = join.partition(threads == 1 ? 1 : threads * 16,
+                DualTreeJoin.MAX_PARTITION_LEVEL);
+            Feature[] dualTreeResults = new Feature[targetIndex.size()];
+            boolean[] joined = new boolean[dualTreeResults.length];
+            AtomicInteger count = new AtomicInteger();
+            invoke(new PartitionTask(join, partitions, 0, partitions.size(), monitor,
+                (target, candidates, n) -> {
+                    if (monitor.isCancelRequested()) return;
+                    dualTreeResults[target] = aggregator.aggregate(
+                        targetIndex.getFeature(target), sourceIndex, visitor -> {
+                            for (int i = 0 ; i < n ; i++) visitor.accept(candidates[i]);
+                        });
+                    joined[target] = true;
+                    monitor.report(count.incrementAndGet(), dualTreeResults.length,
+                        i18n.get("monitor.features"));
+                }));
+            if (monitor.isCancelRequested()) return null;
+            // targets with an empty geometry are not in the target tree : they
+            // get empty aggregates, as with the other engines
+            for (int i = 0 ; i < joined.length ; i++) {
+                if (!joined[i]) dualTreeResults[i] = aggregator.finish(targetIndex.getFeature(i), null);
+            }
+            report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+            results = dualTreeResults;
+        } else if (joinEngine == JoinEngine.PLANE_SWEEP) {
+            SweepIndex sweepIndex = index(SOURCE, () -> new SweepIndex(sources));
+            extractColumns(aggregator, sweepIndex);
+            List<Feature> targetList = targets.getFeatures();
+            long t0 = System.nanoTime();
+            // targets are processed by ascending minX, so that consecutive
+            // queries scan close slices of the source arrays
+            int[] order = SweepIndex.sortByMinX(targetList);
+            Feature[] sweepResults = new Feature[order.length];
+            invoke(new TargetRangeTask(
+                i -> aggregator.aggregate(targetList.get(order[i]), sweepIndex),
+                sweepResults, 0, sweepResults.length, new AtomicInteger(), monitor,
+                getThreshold(sweepResults.length)));
+            // restore the order of target features
+            results = new Feature[order.length];
+            for (int i = 0 ; i < order.length ; i++) results[order[i]] = sweepResults[i];
+            report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+        } else if (joinEngine == JoinEngine.NESTED_LOOP &&
+                time(Phase.PLAN, () -> isPointInArea(sources, targets))) {
+            report.setProperty("direction", "POINT_IN_POLYGON");
+            PointIndex pointIndex = index(SOURCE, () -> new PointIndex(sources));
+            extractColumns(aggregator, pointIndex);
+            IntPredicate test = relation.getPointInAreaTest(gp_params);
+            List<Feature> targetList = targets.getFeatures();
+            long t0 = System.nanoTime();
+            results = new Feature[targetList.size()];
+            invoke(new TargetRangeTask(
+                i -> aggregator.aggregate(targetList.get(i), pointIndex, test),
+                results, 0, results.length, new AtomicInteger(), monitor,
+                getThreshold(results.length)));
+            report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+        } else if (joinEngine == JoinEngine.NESTED_LOOP && !aggregator.clip &&
+                time(Phase.PLAN, () -> isPointDistance(sources, targets))) {
+            report.setProperty("direction", "POINT_DISTANCE");
+            PointIndex pointIndex = index(SOURCE, () -> new PointIndex(sources));
+            extractColumns(aggregator, pointIndex);
+            double pointDistance = relation.getPointDistance(gp_params);
+            List<Feature> targetList = targets.getFeatures();
+            long t0 = System.nanoTime();
+            results = new Feature[targetList.size()];
+            invoke(new TargetRangeTask(
+                i -> aggregator.aggregate(targetList.get(i), pointIndex, pointDistance),
+                results, 0, results.length, new AtomicInteger(), monitor,
+                getThreshold(results.length)));
+            report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+        } else if (time(Phase.PLAN, () -> JoinPlanner.plan(
+                // choose the side of the join to index from layer statistics
+                indexProvider.getStatistics(sources),
+                indexProvider.getStatistics(targets), distance,
+                indexProvider.isIndexed(sources), indexProvider.isIndexed(targets)))
+                == JoinPlanner.Direction.INDEX_SOURCE) {
+            report.setProperty("direction", JoinPlanner.Direction.INDEX_SOURCE.name());
+            // point sources are indexed in a packed KD-tree, unless an
+            // R-tree of the source layer is already available
+            CandidateIndex index = !indexProvider.isIndexed(sources) && PointIndex.isPuntal(sources) ?
+                index(SOURCE, () -> new PointIndex(sources)) :
+                index(SOURCE, () -> indexProvider.getIndex(sources));
+            extractColumns(aggregator, index);
+            List<Feature> targetList = targets.getFeatures();
+            long t0 = System.nanoTime();
+            // results are stored by target position so that the output order
+            // does not depend on the order in which worker threads complete
+            results = new Feature[targetList.size()];
+            // Main loop over target feature collection
+            invoke(new TargetRangeTask(i -> aggregator.aggregate(targetList.get(i), index),
+                results, 0, results.length, new AtomicInteger(), monitor,
+                getThreshold(results.length)));
+            report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+        } else {
+            report.setProperty("direction", JoinPlanner.Direction.INDEX_TARGET.name());
+            // targets are identified by their position in the target index
+            FeatureIndex index = index(TARGET, () -> indexProvider.getIndex(targets));
+            List<Feature> sourceList = sources.getFeatures();
+            time(Phase.COLUMNS, () -> {
+                aggregator.extractColumns(sourceList::get, sourceList.size());
+                return null;
+            });
+            long t0 = System.nanoTime();
+            // Main loop over source feature collection : each source feature
+            // is accumulated into the accumulators of its related targets
+            Map<Integer,AggregationFunction.Accumulator[]> accumulators =
+                invoke(new SourceRangeTask(aggregator, sourceList, index,
+                    0, sourceList.size(), new AtomicInteger(), monitor,
+                    getSourceThreshold(sourceList.size())));
+            if (monitor.isCancelRequested()) return null;
+            results = new Feature[index.size()];
+            invoke(new TargetRangeTask(
+                i -> aggregator.finish(index.getFeature(i), accumulators.get(i)),
+                results, 0, results.length, new AtomicInteger(), monitor,
+                getThreshold(results.length)));
+            report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+        }
+        if (monitor.isCancelRequested()) return null;
+        if (tableOutput && !values) {
+            List<Feature> targetList = targets.getFeatures();
+            for (int i = 0 ; i < results.length ; i++) {
+                if (results[i] != null) {
+                    results[i].setAttribute(TARGET_FID, getTargetId(targetList.get(i), i));
+                }
+            }
+        }
+        report.setTotalTime(System.nanoTime() - start);
+        return results;
+    }
+
+    // type of the TARGET_FID attribute of a table output
+    private AttributeType getTargetIdType(FeatureSchema tgtSchema) {
+        if (targetIdAttribute == null) return AttributeType.INTEGER;
+        if (!tgtSchema.hasAttribute(targetIdAttribute)) {
+            throw new IllegalArgumentException("Unknown target id attribute : " + targetIdAttribute);
+        }
+        return tgtSchema.getAttributeType(tgtSchema.getAttributeIndex(targetIdAttribute));
+    }
+
+    // value of the TARGET_FID attribute of a table output for target, at
+    // index in the target collection
+    private Object getTargetId(Feature target, int index) {
+        return targetIdAttribute == null ? index : target.getAttribute(targetIdAttribute);
+    }
+
+    /**
+     * Return an {@link IndexAggregation} of targets of tgtSchema with sources
+     * of srcSchema. The report of the engine is the report of all the
+     * aggregations of the returned IndexAggregation.
+     */
+    IndexAggregation createIndexAggregation(FeatureSchema srcSchema, FeatureSchema tgtSchema,
+                                            int sourceCount, int targetCount) {
+        return new IndexAggregation(
+            createAggregator(srcSchema, tgtSchema, sourceCount, targetCount, true));
+    }
+
+    /**
+     * Aggregates targets with the sources of an index maintained across runs
+     * (see {@link LiveAggregation}). The aggregator and the schema of
+     * aggregated values are created once, and reused by each aggregation.
+     */
+    final class IndexAggregation {
+
+        private final TargetAggregator aggregator;
+
+        private IndexAggregation(TargetAggregator aggregator) {
+            this.aggregator = aggregator;
+        }
+
+        /**
+         * Return the schema of aggregated values (see {@link #getOutputSchema()}).
+         */
+        FeatureSchema getValuesSchema() {
+            return aggregator.newSchema;
+        }
+
+        /**
+         * Aggregate the sources of sourceIndex on targets, without planning,
+         * indexing nor column extraction, and return the aggregated values
+         * of each target (see {@link #aggregateValues}).
+         * @return aggregated values, or null if the task has been cancelled
+         */
+        Object[][] aggregateValues(CandidateIndex sourceIndex, List<Feature> targets,
+                                   TaskMonitor monitor) {
+            long t0 = System.nanoTime();
+            Feature[] results = new Feature[targets.size()];
+            invoke(new TargetRangeTask(i -> aggregator.aggregate(targets.get(i), sourceIndex),
+                results, 0, results.length, new AtomicInteger(), monitor,
+                getThreshold(results.length)));
+            aggregator.report.addWallTime(Phase.JOIN, System.nanoTime() - t0);
+            if (monitor.isCancelRequested()) return null;
+            return getValues(results);
+        }
+    }
+
+    // create the report, the events and the output schema of a new run, and
+    // the aggregator computing the aggregated feature of each target (or the
+    // feature holding its aggregated values only if values is true)
+    private TargetAggregator createAggregator(FeatureSchema srcSchema,
+                                              FeatureSchema tgtSchema,
+                                              int sourceCount, int targetCount,
+                                              boolean values) {
+        report = new AggregationReport();
+        report.setProperty("engine", joinEngine.name());
+        report.setProperty("predicate", relation.getName());
+        report.setProperty("aggregations", specs.toString());
+        report.setProperty("sources", sourceCount);
+        report.setProperty("targets", targetCount);
+        report.setProperty("threads", threads);
+        events = AggregationEvents.create(relation.getName(), specs.toString());
+        for (AggregationSpec spec : specs) {
+            if (getInputType(srcSchema, spec.getAttribute()) == null) {
+                throw new IllegalArgumentException(
+                    i18n.get("invalid-aggregation") + " : " + spec);
+            }
+        }
+
+        // Creation du schema pour la couche agrégée
+        // (one new attribute per aggregation, except for geometry aggregations
+        // which replace target geometries)
+        FeatureSchema newSchema;
+        if (values) {
+            newSchema = new FeatureSchema();
+            newSchema.addAttribute(GEOMETRY, AttributeType.GEOMETRY);
+        } else if (tableOutput) {
+            newSchema = new FeatureSchema();
+            newSchema.addAttribute(GEOMETRY, AttributeType.GEOMETRY);
+            newSchema.addAttribute(TARGET_FID, getTargetIdType(tgtSchema));
+        } else {
+            newSchema = tgtSchema.clone();
+        }
+        for (AggregationSpec spec : specs) {
+            AttributeType returnType = spec.getFunction()
+                .getReturnAttributeType(getInputType(srcSchema, spec.getAttribute()));
+            if (returnType != AttributeType.GEOMETRY) {
+                newSchema.addAttribute(getOutputAttributeName(sourceName, srcSchema, spec), returnType);
+            }
+        }
+        outputSchema = newSchema;
+        return new TargetAggregator(srcSchema, tgtSchema, newSchema, values, report, events);
+    }
+
+    /**
+     * Return true if the relation reduces to a point-in-polygon test between
+     * sources and targets : sources are all points and targets are all
+     * polygonal.
+     */
+    private boolean isPointInArea(FeatureCollection sources, FeatureCollection targets) {
+        if (relation.getPointInAreaTest(gp_params) == null) return false;
+        if (!PointIndex.isPuntal(sources)) return false;
+        for (Feature target : targets.getFeatures()) {
+            if (!(target.getGeometry() instanceof Polygonal)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return true if the relation reduces to a distance test between points :
+     * sources and targets are all points.
+     */
+    private boolean isPointDistance(FeatureCollection sources, FeatureCollection targets) {
+        if (Double.isNaN(relation.getPointDistance(gp_params))) return false;
+        return PointIndex.isPuntal(sources) && PointIndex.isPuntal(targets);
+    }
+
+    /**
+     * Return the distance by which a target envelope must be expanded to
+     * find all its candidate sources (0 except for WithinDistance).
+     */
+    double getQueryDistance() {
+        return relation.getParameterCount()==1 ? gp_params[0] : 0.0;
+    }
+
+    /**
+     * Return the report of the last run of this engine (null if the engine
+     * has not been run yet).
+     */
+    public AggregationReport getReport() {
+        return report;
+    }
+
+    // extract the source columns of aggregator from the features of
+    // sourceIndex, the extraction time being added to the COLUMNS phase
+    private void extractColumns(TargetAggregator aggregator, CandidateIndex sourceIndex) {
+        time(Phase.COLUMNS, () -> {
+            aggregator.extractColumns(sourceIndex::getFeature, sourceIndex.size());
+            return null;
+        });
+    }
+
+    // index returned by supplier, its computation time being added to the
+    // INDEX phase and recorded as an index event
+    private <T extends CandidateIndex> T index(String collection, Supplier<T> supplier) {
+        Object event = events.beginIndex();
+        T index = time(Phase.INDEX, supplier);
+        events.commitIndex(event, joinEngine.name(), collection, index.size());
+        return index;
+    }
+
+    // supplier result, its computation time being added to phase
+    private <T> T time(Phase phase, Supplier<T> supplier) {
+        long t0 = System.nanoTime();
+        T t = supplier.get();
+        report.addWallTime(phase, System.nanoTime() - t0);
+        return t;
+    }
+
+    /**
+     * Return the AttributeType of source attribute values (including
+     * geometry, geometry length and geometry area pseudo-attributes), or
+     * null if the source schema has no such attribute.
+     */
+    static AttributeType getInputType(FeatureSchema srcSchema, String attribute) {
+        String srcGeometryName = srcSchema.getAttributeName(srcSchema.getGeometryIndex());
+        if (attribute.equals(srcGeometryName)) return AttributeType.GEOMETRY;
+        else if (attribute.equals(srcGeometryName+"."+LENGTH)) return AttributeType.DOUBLE;
+        else if (attribute.equals(srcGeometryName+"."+AREA)) return AttributeType.DOUBLE;
+        else if (srcSchema.hasAttribute(attribute)) {
+            return srcSchema.getAttributeType(srcSchema.getAttributeIndex(attribute));
+        }
+        else return null;
+    }
+
+    /**
+     * Return the name of the attribute where the result of spec is stored
+     * (ex. Count_cities.population), followed by +null if null values are
+     * aggregated, so that Count(population) and Count(population)+null are
+     * stored in different attributes.
+     */
+    static String getOutputAttributeName(String sourceName, FeatureSchema srcSchema,
+                                         AggregationSpec spec) {
+        String srcGeometryName = srcSchema.getAttributeName(srcSchema.getGeometryIndex());
+        String tgtAttributeName = spec.getAttribute().replaceAll("^"+srcGeometryName+"(\\.)?","");
+        tgtAttributeName = tgtAttributeName.length()>0?"."+tgtAttributeName:tgtAttributeName;
+        return spec.getFunction().getName() + "_" + sourceName + tgtAttributeName +
+            (spec.isIgnoreNull() ? "" : "+null");
+    }
+
+    /**
+     * Execute task in a pool of threads workers, or in the current thread if
+     * threads is 1.
+     */
+    private <T> T invoke(ForkJoinTask<T> task) {
+        if (threads == 1) return task.invoke();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(task);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Return the size under which a {@link SourceRangeTask} is processed
+     * without being split. It does not depend on the number of threads, so
+     * that sources are always accumulated in the same ranges, merged in the
+     * same order (double sums depend on the order of additions).
+     */
+    private static int getSourceThreshold(int size) {
+        return Math.max(SOURCE_RANGE, size / 64);
+    }
+
+    /**
+     * Return the size under which a range task is processed without being
+     * split (no split at all in single thread mode).
+     */
+    private int getThreshold(int size) {
+        if (threads == 1) return Math.max(1, size);
+        return Math.max(1, size / (threads * 16));
+    }
+
+    /**
+     * Computes the aggregated features of target features, either by querying
+     * the source index for a target feature, or by scattering a source feature
+     * into the accumulators of the target features it is related to.
+     * An instance holds only data which are read-only during the run, so that
+     * it can be shared by several worker threads.
+     */
+    private class TargetAggregator {
+
+        // pseudo attribute indexes for geometry related values
+        static final int GEOMETRY_VALUE = -1;
+        static final int LENGTH_VALUE = -2;
+        static final int AREA_VALUE = -3;
+
+        final FeatureSchema srcSchema;
+        final FeatureSchema tgtSchema;
+        final FeatureSchema newSchema;
+        final AggregationSpec[] specs;
+        final AttributeType[] inputTypes;
+        final AttributeType[] returnTypes;
+        final int[] attributeIndexes;
+        final String[] outputNames;
+        // numeric source attributes extracted by extractColumns (null for
+        // other aggregations)
+        final AttributeColumn[] columns;
+        // measures of unclipped source geometries, computed once per source
+        // (null if no aggregation needs them)
+        MeasureColumn lengths, areas;
+        // geometry shared by the features of a table output
+        final Geometry emptyGeometry = new GeometryFactory().createGeometryCollection();
+        // if true, aggregated features only hold aggregated values
+        final boolean values;
+        // intersection is only computed if a geometry related value is needed
+        final boolean clip;
+        final AggregationReport report;
+        final AggregationEvents events;
+
+        TargetAggregator(FeatureSchema srcSchema, FeatureSchema tgtSchema,
+                         FeatureSchema newSchema, boolean values,
+                         AggregationReport report, AggregationEvents events) {
+            this.values = values;
+            this.report = report;
+            this.events = events;
+            this.srcSchema = srcSchema;
+            this.tgtSchema = tgtSchema;
+            this.newSchema = newSchema;
+            this.specs = AggregationEngine.this.specs.toArray(new AggregationSpec[0]);
+            int n = this.specs.length;
+            inputTypes = new AttributeType[n];
+            returnTypes = new AttributeType[n];
+            attributeIndexes = new int[n];
+            outputNames = new String[n];
+            columns = new AttributeColumn[n];
+            String srcGeometryName = srcSchema.getAttributeName(srcSchema.getGeometryIndex());
+            boolean geometryValues = false;
+            for (int i = 0 ; i < n ; i++) {
+                String attribute = this.specs[i].getAttribute();
+                inputTypes[i] = getInputType(srcSchema, attribute);
+                returnTypes[i] = this.specs[i].getFunction().getReturnAttributeType(inputTypes[i]);
+                outputNames[i] = getOutputAttributeName(sourceName, srcSchema, this.specs[i]);
+                if (attribute.equals(srcGeometryName)) attributeIndexes[i] = GEOMETRY_VALUE;
+                else if (attribute.equals(srcGeometryName+"."+LENGTH)) attributeIndexes[i] = LENGTH_VALUE;
+                else if (attribute.equals(srcGeometryName+"."+AREA)) attributeIndexes[i] = AREA_VALUE;
+                else attributeIndexes[i] = srcSchema.getAttributeIndex(attribute);
+                geometryValues |= attributeIndexes[i] < 0;
+            }
+            clip = intersection && geometryValues;
+        }
+
+        /**
+         * Return a new feature with target feature attributes plus the
+         * values aggregated from the related features of sourceIndex, or null
+         * if an aggregated geometry is empty.
+         */
+        Feature aggregate(Feature feature, CandidateIndex sourceIndex) {
+            // query envelope is a copy : geometry envelope must not be expanded
+            Envelope queryEnvelope = new Envelope(feature.getGeometry().getEnvelopeInternal());
+            if (relation.getParameterCount()==1) queryEnvelope.expandBy(gp_params[0]);
+            return aggregate(feature, sourceIndex,
+                visitor -> sourceIndex.query(queryEnvelope, visitor));
+        }
+
+        /**
+         * Return a new feature with target feature attributes plus the
+         * values aggregated from the candidates of sourceIndex satisfying the
+         * spatial relation, or null if an aggregated geometry is empty.
+         * @param candidates calls its argument with the id of each candidate
+         */
+        Feature aggregate(Feature feature, CandidateIndex sourceIndex,
+                          Consumer<IntConsumer> candidates) {
+            AggregationReport.Probe probe = new AggregationReport.Probe(detailedTiming);
+            Object targetEvent = events.beginTarget();
+            long start = probe.now();
+            Geometry geometry = feature.getGeometry();
+            // related features are folded into the accumulators as soon as
+            // they are found
+            AggregationFunction.Accumulator[] accumulators = createAccumulators();
+            // target geometry is prepared once and tested against all candidates
+            GeometryPredicate.PreparedPredicate predicate = relation.prepare(geometry, gp_params);
+            // candidates are clipped lazily, only once the predicate accepted them
+            Clipper clipper = clip ? new Clipper(geometry, true) : null;
+            candidates.accept(id -> {
+                probe.candidates++;
+                long t0 = probe.now();
+                Feature f = sourceIndex.getFeature(id);
+                boolean hit = predicate.isTrue(f.getGeometry());
+                long t1 = probe.now();
+                probe.predicate += t1 - t0;
+                if (hit) {
+                    probe.hits++;
+                    Geometry g = clip ? clipper.clip(f.getGeometry(), probe) : f.getGeometry();
+                    long t2 = probe.now();
+                    accumulate(accumulators, id, f, g);
+                    probe.overlay += t2 - t1;
+                    probe.aggregation += probe.now() - t2;
+                }
+            });
+            long t = probe.now();
+            Feature newFeature = finish(feature, accumulators);
+            long end = probe.now();
+            probe.aggregation += end - t;
+            // query time is the time spent outside candidate processing
+            probe.query = end - start - probe.overlay - probe.predicate - probe.aggregation;
+            report.add(probe);
+            events.commitTarget(targetEvent, feature.getID(), geometry, probe.candidates, probe.hits);
+            return newFeature;
+        }
+
+        /**
+         * Return a new feature with target feature attributes plus the
+         * values aggregated from the points of sourceIndex whose location
+         * relative to the polygonal target satisfies test, or null if an
+         * aggregated geometry is empty.
+         */
+        Feature aggregate(Feature feature, PointIndex sourceIndex, IntPredicate test) {
+            AggregationReport.Probe probe = new AggregationReport.Probe(detailedTiming);
+            Object targetEvent = events.beginTarget();
+            long start = probe.now();
+            Geometry geometry = feature.getGeometry();
+            AggregationFunction.Accumulator[] accumulators = createAccumulators();
+            // target is indexed once and located against all candidates
+            PointOnGeometryLocator locator = new IndexedPointInAreaLocator(geometry);
+            Coordinate coordinate = new Coordinate();
+            sourceIndex.query(geometry.getEnvelopeInternal(), (id, x, y) -> {
+                probe.candidates++;
+                long t0 = probe.now();
+                coordinate.x = x;
+                coordinate.y = y;
+                boolean hit = test.test(locator.locate(coordinate));
+                long t1 = probe.now();
+                probe.predicate += t1 - t0;
+                if (hit) {
+                    probe.hits++;
+                    // an accepted point lies in the target : it is its own
+                    // intersection with the target, no overlay is needed
+                    Feature f = sourceIndex.getFeature(id);
+                    accumulate(accumulators, id, f, f.getGeometry());
+                    probe.aggregation += probe.now() - t1;
+                }
+            });
+            long t = probe.now();
+            Feature newFeature = finish(feature, accumulators);
+            long end = probe.now();
+            probe.aggregation += end - t;
+            probe.query = end - start - probe.predicate - probe.aggregation;
+            report.add(probe);
+            events.commitTarget(targetEvent, feature.getID(), geometry, probe.candidates, probe.hits);
+            return newFeature;
+        }
+
+        /**
+         * Return a new feature with target feature attributes plus the
+         * values aggregated from the points of sourceIndex lying within
+         * distance of the point target (the distance query of the index
+         * is the predicate itself), or null if an aggregated geometry is
+         * empty.
+         */
+        Feature aggregate(Feature feature, PointIndex sourceIndex, double distance) {
+            AggregationReport.Probe probe = new AggregationReport.Probe(detailedTiming);
+            Object targetEvent = events.beginTarget();
+            long start = probe.now();
+            Point point = (Point)feature.getGeometry();
+            AggregationFunction.Accumulator[] accumulators = createAccumulators();
+            if (!point.isEmpty()) {
+                sourceIndex.query(point.getX(), point.getY(), distance, (id, x, y) -> {
+                    probe.candidates++;
+                    probe.hits++;
+                    long t0 = probe.now();
+                    Feature f = sourceIndex.getFeature(id);
+                    accumulate(accumulators, id, f, f.getGeometry());
+                    probe.aggregation += probe.now() - t0;
+                });
+            }
+            long t = probe.now();
+            Feature newFeature = finish(feature, accumulators);
+            long end = probe.now();
+            probe.aggregation += end - t;
+            probe.query = end - start - probe.aggregation;
+            report.add(probe);
+            events.commitTarget(targetEvent, feature.getID(), point, probe.candidates, probe.hits);
+            return newFeature;
+        }
+
+        /**
+         * Accumulate values of source into the accumulators of each target
+         * feature of targetIndex it is related to. Accumulators are created
+         * as needed in the accumulators map, by target feature id.
+         * @param sourceId the id of source in the extracted columns
+         */
+        void scatter(int sourceId, Feature source, FeatureIndex targetIndex,
+                     Map<Integer,AggregationFunction.Accumulator[]> accumulators) {
+            AggregationReport.Probe probe = new AggregationReport.Probe(detailedTiming);
+            long start = probe.now();
+            Geometry geometry = source.getGeometry();
+            Envelope queryEnvelope = new Envelope(geometry.getEnvelopeInternal());
+            if (relation.getParameterCount()==1) queryEnvelope.expandBy(gp_params[0]);
+            // source geometry is prepared once and tested against all candidates
+            GeometryPredicate.PreparedPredicate predicate = relation.prepareFirst(geometry, gp_params);
+            targetIndex.query(queryEnvelope, id -> {
+                probe.candidates++;
+                long t0 = probe.now();
+                Geometry tg = targetIndex.getFeature(id).getGeometry();
+                boolean hit = predicate.isTrue(tg);
+                long t1 = probe.now();
+                probe.predicate += t1 - t0;
+                if (hit) {
+                    probe.hits++;
+                    // target changes with each candidate : it is not worth
+                    // preparing it for a single clip
+                    Geometry g = clip ? new Clipper(tg, false).clip(geometry, probe) : geometry;
+                    long t2 = probe.now();
+                    accumulate(accumulators.computeIfAbsent(id, k -> createAccumulators()),
+                        sourceId, source, g);
+                    probe.overlay += t2 - t1;
+                    probe.aggregation += probe.now() - t2;
+                }
+            });
+            probe.query = probe.now() - start - probe.overlay - probe.predicate - probe.aggregation;
+            report.add(probe);
+        }
+
+        /**
+         * Clips source geometries with a target geometry. The overlay is
+         * skipped for sources covered by the target, which are returned
+         * unchanged (their intersection with the target is the source itself).
+         */
+        final class Clipper {
+
+            final Geometry target;
+            final boolean prepare;
+            PreparedGeometry preparedTarget;
+
+            /**
+             * @param target the target geometry
+             * @param prepare if true, target is prepared the first time a
+             *                source envelope falls within its envelope, to
+             *                test if it covers the source. Otherwise, the
+             *                covers test is only done for rectangles.
+             */
+            Clipper(Geometry target, boolean prepare) {
+                this.target = target;
+                this.prepare = prepare;
+            }
+
+            Geometry clip(Geometry source, AggregationReport.Probe probe) {
+                if (target.getEnvelopeInternal().covers(source.getEnvelopeInternal())) {
+                    if (target.isRectangle()) return source;
+                    if (prepare) {
+                        if (preparedTarget == null) {
+                            preparedTarget = PreparedGeometryFactory.prepare(target);
+                        }
+                        if (preparedTarget.covers(source)) return source;
+                    }
+                }
+                Object overlayEvent = events.beginOverlay();
+                Geometry g = source.intersection(target);
+                events.commitOverlay(overlayEvent, source, target);
+                probe.overlays++;
+                return g;
+            }
+        }
+
+        /**
+         * Extract the numeric source attributes to aggregate into columns
+         * indexed by source feature id, and create the columns caching
+         * source geometry measures. Aggregations of the same attribute
+         * share the same column. Must be called before the join.
+         * @param sources function returning the source feature of an id
+         * @param size number of source features
+         */
+        void extractColumns(IntFunction<Feature> sources, int size) {
+            Map<Integer,AttributeColumn> attributeColumns = new HashMap<>();
+            for (int i = 0 ; i < specs.length ; i++) {
+                // geometry measures are only computed when needed, by the join
+                if (attributeIndexes[i] == LENGTH_VALUE && lengths == null) {
+                    lengths = new MeasureColumn(size, Geometry::getLength);
+                }
+                if (attributeIndexes[i] == AREA_VALUE && areas == null) {
+                    areas = new MeasureColumn(size, Geometry::getArea);
+                }
+                final AttributeType type = inputTypes[i];
+                if (attributeIndexes[i] >= 0 && AttributeColumn.isColumnar(type)) {
+                    columns[i] = attributeColumns.computeIfAbsent(attributeIndexes[i],
+                        index -> new AttributeColumn(sources, size, index, type));
+                }
+            }
+        }
+
+        /**
+         * Return a new accumulator for each aggregation.
+         */
+        AggregationFunction.Accumulator[] createAccumulators() {
+            AggregationFunction.Accumulator[] accumulators =
+                new AggregationFunction.Accumulator[specs.length];
+            for (int i = 0 ; i < specs.length ; i++) {
+                accumulators[i] = specs[i].getFunction()
+                    .createAccumulator(inputTypes[i], specs[i].isIgnoreNull(), null);
+            }
+            return accumulators;
+        }
+
+        /**
+         * Merge accumulators of other into accumulators.
+         */
+        void merge(AggregationFunction.Accumulator[] accumulators,
+                   AggregationFunction.Accumulator[] other) {
+            for (int i = 0 ; i < specs.length ; i++) {
+                accumulators[i].merge(other[i]);
+            }
+        }
+
+        /**
+         * Return a new feature with target feature attributes plus the
+         * aggregated values, or null if an aggregated geometry is empty.
+         * @param accumulators accumulators of feature (null if no source
+         *                     feature is related to it)
+         */
+        Feature finish(Feature feature, AggregationFunction.Accumulator[] accumulators) {
+            if (accumulators == null) accumulators = createAccumulators();
+            Feature newFeature = new BasicFeature(newSchema);
+            if (values) {
+                // target attributes are not copied, and the geometry is only
+                // set by a geometry aggregation
+            } else if (tableOutput) {
+                // TARGET_FID is set by aggregateByTarget, which knows the
+                // position of the target
+                newFeature.setGeometry(emptyGeometry);
+            } else {
+                for (int i = 0 ; i < tgtSchema.getAttributeCount() ; i++) {
+                    newFeature.setAttribute(i, feature.getAttribute(i));
+                }
+            }
+            for (int i = 0 ; i < specs.length ; i++) {
+                if (returnTypes[i] == AttributeType.GEOMETRY) {
+                    Object event = events.beginUnion();
+                    Object agg = accumulators[i].finish();
+                    events.commitUnion(event, feature.getID(),
+                        specs[i].getFunction().getName(), (Geometry)agg);
+                    if (agg == null || ((Geometry)agg).isEmpty()) return null;
+                    else newFeature.setGeometry((Geometry)agg);
+                }
+                else newFeature.setAttribute(outputNames[i], accumulators[i].finish());
+            }
+            return newFeature;
+        }
+
+        // g being the source geometry, or its intersection with the target
+        // numeric values (extracted columns and geometry measures) are
+        // passed to the primitive accumulate methods, without boxing.
+        // Cached measures of f are used unless g is a clipped geometry (or
+        // columns have not been extracted).
+        private void accumulate(AggregationFunction.Accumulator[] accumulators,
+                                int id, Feature f, Geometry g) {
+            boolean unclipped = g == f.getGeometry();
+            for (int i = 0 ; i < specs.length ; i++) {
+                if (columns[i] != null) {
+                    columns[i].accumulate(accumulators[i], id);
+                    continue;
+                }
+                switch (attributeIndexes[i]) {
+                    case GEOMETRY_VALUE : accumulators[i].accumulate(g); break;
+                    case LENGTH_VALUE : accumulators[i].accumulate(
+                        unclipped && lengths != null ? lengths.get(id, g) : g.getLength()); break;
+                    case AREA_VALUE : accumulators[i].accumulate(
+                        unclipped && areas != null ? areas.get(id, g) : g.getArea()); break;
+                    default : accumulators[i].accumulate(f.getAttribute(attributeIndexes[i]));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fork-join task computing the results of the [from, to[ range of target
+     * features. Ranges larger than threshold are split in two halves
+     * processed in parallel. Each task writes in its own slots of the results
+     * array.
+     */
+    private class TargetRangeTask extends RecursiveAction {
+
+        final IntFunction<Feature> function;
+        final Feature[] results;
+        final int from, to;
+        final AtomicInteger count;
+        final TaskMonitor monitor;
+        final int threshold;
+
+        /**
+         * @param function function computing the result of the i-th target
+         */
+        TargetRangeTask(IntFunction<Feature> function,
+                        Feature[] results, int from, int to,
+                        AtomicInteger count, TaskMonitor monitor, int threshold) {
+            this.function = function;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            this.monitor = monitor;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > threshold) {
+                int mid = (from + to) >>> 1;
+                invokeAll(
+                    new TargetRangeTask(function, results,
+                        from, mid, count, monitor, threshold),
+                    new TargetRangeTask(function, results,
+                        mid, to, count, monitor, threshold));
+                return;
+            }
+            Object event = events.beginBatch();
+            for (int i = from ; i < to ; i++) {
+                if (monitor.isCancelRequested()) return;
+                results[i] = function.apply(i);
+                monitor.report(count.incrementAndGet(), results.length,
+                    i18n.get("monitor.features"));
+            }
+            events.commitBatch(event, from, to);
+        }
+    }
+
+    /**
+     * Fork-join task joining the [from, to[ range of target subtree
+     * partitions with the source tree. Each partition is processed by a
+     * single task.
+     */
+    private class PartitionTask extends RecursiveAction {
+
+        final DualTreeJoin join;
+        final List<Boundable> partitions;
+        final int from, to;
+        final TaskMonitor monitor;
+        final DualTreeJoin.CandidateConsumer consumer;
+
+        PartitionTask(DualTreeJoin join, List<Boundable> partitions,
+                      int from, int to, TaskMonitor monitor,
+                      DualTreeJoin.CandidateConsumer consumer) {
+            this.join = join;
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+            this.monitor = monitor;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int mid = (from + to) >>> 1;
+                invokeAll(
+                    new PartitionTask(join, partitions, from, mid, monitor, consumer),
+                    new PartitionTask(join, partitions, mid, to, monitor, consumer));
+                return;
+            }
+            if (from < to && !monitor.isCancelRequested()) {
+                Object event = events.beginBatch();
+                join.join(partitions.get(from), consumer);
+                events.commitBatch(event, from, to);
+            }
+        }
+    }
+
+    /**
+     * Fork-join task scattering the [from, to[ range of source features into
+     * target accumulators. Each task fills its own map of accumulators, and
+     * maps are merged in source order. As split points do not depend on the
+     * number of threads (see {@link #getSourceThreshold}), the result does
+     * not depend on the number of threads.
+     */
+    private class SourceRangeTask
+        extends RecursiveTask<Map<Integer,AggregationFunction.Accumulator[]>> {
+
+        final TargetAggregator aggregator;
+        final List<Feature> sources;
+        final FeatureIndex targetIndex;
+        final int from, to;
+        final AtomicInteger count;
+        final TaskMonitor monitor;
+        final int threshold;
+
+        SourceRangeTask(TargetAggregator aggregator, List<Feature> sources,
+                        FeatureIndex targetIndex, int from, int to,
+                        AtomicInteger count, TaskMonitor monitor, int threshold) {
+            this.aggregator = aggregator;
+            this.sources = sources;
+            this.targetIndex = targetIndex;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+            this.monitor = monitor;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected Map<Integer,AggregationFunction.Accumulator[]> compute() {
+            if (to - from > threshold) {
+                int mid = (from + to) >>> 1;
+                SourceRangeTask left = new SourceRangeTask(aggregator, sources,
+                    targetIndex, from, mid, count, monitor, threshold);
+                SourceRangeTask right = new SourceRangeTask(aggregator, sources,
+                    targetIndex, mid, to, count, monitor, threshold);
+                left.fork();
+                Map<Integer,AggregationFunction.Accumulator[]> rightMap = right.compute();
+                Map<Integer,AggregationFunction.Accumulator[]> leftMap = left.join();
+                for (Map.Entry<Integer,AggregationFunction.Accumulator[]> entry : rightMap.entrySet()) {
+                    AggregationFunction.Accumulator[] accumulators = leftMap.get(entry.getKey());
+                    if (accumulators == null) leftMap.put(entry.getKey(), entry.getValue());
+                    else aggregator.merge(accumulators, entry.getValue());
+                }
+                return leftMap;
+            }
+            Map<Integer,AggregationFunction.Accumulator[]> map = new HashMap<>();
+            Object event = events.beginBatch();
+            for (int i = from ; i < to ; i++) {
+                if (monitor.isCancelRequested()) break;
+                aggregator.scatter(i, sources.get(i), targetIndex, map);
+                monitor.report(count.incrementAndGet(), sources.size(),
+                    i18n.get("monitor.features"));
+            }
+            events.commitBatch(event, from, to);
+            return map;
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Emits Java Flight Recorder events for the main steps of an aggregation
+ * run : index construction, join batches, slow targets, overlay and union
+ * operations, and layer write. Each event carries the names of the
+ * predicate and of the aggregations of the run.
+ * <p>
+ * JFR classes are only referenced by {@code JfrAggregationEvents}, which is
+ * loaded by reflection : on a JVM without JFR (the plugin targets Java 8),
+ * all methods are no-ops. JfrAggregationEvents is in a separate source
+ * directory (src/main/java-jfr), compiled for Java 11 by the jfr profile of
+ * the build, which is only active with a JDK 11 or later : a jar built with
+ * JDK 8 has no JFR events.
+ * <p>
+ * An event is started by a begin method, which returns an opaque handle
+ * (possibly null), and is ended by the matching commit method.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class AggregationEvents {
+
+    private static final boolean JFR_AVAILABLE = isJfrAvailable();
+
+    /**
+     * Return the events of a run aggregating functions with predicate.
+     */
+    static AggregationEvents create(String predicate, String functions) {
+        if (JFR_AVAILABLE) {
+            try {
+                // loaded by reflection so that this class never links to JFR
+                return (AggregationEvents)Class.forName(
+                    "fr.michaelm.jump.plugin.aggregation.JfrAggregationEvents")
+                    .getDeclaredConstructor(String.class, String.class)
+                    .newInstance(predicate, functions);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // JFR classes cannot be used in this JVM (or the jar has been
+                // built without them)
+            }
+        }
+        return new AggregationEvents();
+    }
+
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+
+    Object beginIndex() { return null; }
+
+    /**
+     * @param layer name of the indexed layer or role of the collection
+     * @param features number of indexed features
+     */
+    void commitIndex(Object event, String engine, String layer, int features) {}
+
+    Object beginBatch() { return null; }
+
+    /**
+     * @param from first feature of the batch
+     * @param to last feature of the batch (excluded)
+     */
+    void commitBatch(Object event, int from, int to) {}
+
+    Object beginTarget() { return null; }
+
+    /**
+     * Commit the event if the target took more time than the threshold of
+     * the recording.
+     */
+    void commitTarget(Object event, Object fid, Geometry target, int candidates, int hits) {}
+
+    Object beginOverlay() { return null; }
+
+    void commitOverlay(Object event, Geometry source, Geometry target) {}
+
+    Object beginUnion() { return null; }
+
+    /**
+     * @param result the geometry aggregated on a target feature
+     */
+    void commitUnion(Object event, Object fid, String function, Geometry result) {}
+
+    Object beginLayerWrite() { return null; }
+
+    void commitLayerWrite(Object event, String layer, int features) {}
+
+}
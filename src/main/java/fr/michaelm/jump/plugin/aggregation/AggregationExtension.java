@@ -26,6 +26,7 @@ package fr.michaelm.jump.plugin.aggregation;
 import com.vividsolutions.jump.workbench.plugin.Extension;
 import com.vividsolutions.jump.workbench.plugin.PlugInContext;
 
+// 2.1.0 (2026-10-17) parallel and tiled aggregation, join engines, command line
 // 2.0.1 (2022-08-27) change properties files to UTF-8
 // 2.0.0 (2021-08-21) upgrade i18n management and align version number to OpenJUMP'2
 // 1.0.0 (2021-04-05) refactoring for java8 / OpenJUMP2 / jts1.18
@@ -40,7 +41,7 @@ public class AggregationExtension extends Extension {
     }
 
     public String getVersion() {
-        return "2.0.0 (2021-08-21)";
+        return "2.1.0 (2026-10-17)";
     }
 
     public void configure(PlugInContext context) {
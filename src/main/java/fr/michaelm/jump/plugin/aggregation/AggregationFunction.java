@@ -25,7 +25,9 @@ package fr.michaelm.jump.plugin.aggregation;
 
 import java.util.*;
 import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.BasicFeature;
 import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureSchema;
 
 import fr.michaelm.jump.plugin.aggregation.function.*;
 
@@ -137,5 +139,123 @@ public abstract class AggregationFunction {
     
     public abstract Object aggregate(List<Feature> list, String sourceAttr,
 		                             boolean ignore_null, Object param);
+
+    /**
+     * Create an empty Accumulator to aggregate values of inputType
+     * AttributeType one at a time.
+     * The default implementation collects values in one-attribute features
+     * and calls {@link #aggregate(List, String, boolean, Object)} in
+     * {@link Accumulator#finish()}, so that subclasses which only implement
+     * the list-based method keep working. Subclasses should override this
+     * method to aggregate values in constant memory.
+     * @param inputType the AttributeType of values to aggregate (may be null
+     *                  if no value is to be aggregated)
+     * @param ignore_null whether null values must be ignored
+     * @param param optional function parameter
+     * @return a new Accumulator
+     */
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new ListAccumulator(this, inputType, ignore_null, param);
+    }
+
+    /**
+     * Aggregate sourceAttr values of features in list with an Accumulator
+     * created by {@link #createAccumulator(AttributeType, boolean, Object)}.
+     * Subclasses implementing createAccumulator can use this method to
+     * implement the list-based aggregate method.
+     */
+    protected Object aggregateWithAccumulator(List<Feature> list, String sourceAttr,
+                                              boolean ignore_null, Object param) {
+        if (list.isEmpty()) return createAccumulator(null, ignore_null, param).finish();
+        FeatureSchema schema = list.get(0).getSchema();
+        int index = schema.getAttributeIndex(sourceAttr);
+        Accumulator accumulator =
+            createAccumulator(schema.getAttributeType(index), ignore_null, param);
+        for (Feature f : list) accumulator.accumulate(f.getAttribute(index));
+        return accumulator.finish();
+    }
+
+    /**
+     * Mutable aggregation state for a single group of values.
+     * Values are accumulated one at a time, partial states computed
+     * separately (e.g. by several threads) can be merged, and finish returns
+     * the aggregated value.
+     * An Accumulator is not thread-safe, and can only be merged with an
+     * Accumulator created by the same function with the same arguments.
+     */
+    public static abstract class Accumulator {
+
+        /**
+         * Add a value (may be null) to this accumulator.
+         */
+        public abstract void accumulate(Object value);
+
+        /**
+         * Add a non null value of an INTEGER attribute to this accumulator.
+         * The default implementation boxes value, subclasses accumulating
+         * numbers override it to avoid boxing.
+         */
+        public void accumulate(int value) {
+            accumulate((Object)value);
+        }
+
+        /**
+         * Add a non null value of a DOUBLE attribute (or a geometry measure)
+         * to this accumulator. The default implementation boxes value,
+         * subclasses accumulating numbers override it to avoid boxing.
+         */
+        public void accumulate(double value) {
+            accumulate((Object)value);
+        }
+
+        /**
+         * Add values accumulated by other to this accumulator.
+         * Values of other are considered as following values of this one.
+         */
+        public abstract void merge(Accumulator other);
+
+        /**
+         * Return the aggregated value of all accumulated values.
+         */
+        public abstract Object finish();
+    }
+
+    /**
+     * Adapter making it possible to use a list-based aggregate method as an
+     * Accumulator.
+     */
+    private static class ListAccumulator extends Accumulator {
+
+        private static final String VALUE = "value";
+
+        private final AggregationFunction function;
+        private final FeatureSchema schema = new FeatureSchema();
+        private final boolean ignore_null;
+        private final Object param;
+        private final List<Feature> list = new ArrayList<>();
+
+        ListAccumulator(AggregationFunction function, AttributeType inputType,
+                        boolean ignore_null, Object param) {
+            this.function = function;
+            this.ignore_null = ignore_null;
+            this.param = param;
+            schema.addAttribute(VALUE, inputType == null ? AttributeType.OBJECT : inputType);
+        }
+
+        public void accumulate(Object value) {
+            Feature feature = new BasicFeature(schema);
+            feature.setAttribute(0, value);
+            list.add(feature);
+        }
+
+        public void merge(Accumulator other) {
+            list.addAll(((ListAccumulator)other).list);
+        }
+
+        public Object finish() {
+            return function.aggregate(list, VALUE, ignore_null, param);
+        }
+    }
     
 }
@@ -0,0 +1,265 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of an aggregation run.
+ * <p>
+ * Planning, indexing, join and output phases are measured in wall time.
+ * When detailed timing is enabled, the join phase is further split into
+ * query, predicate, overlay (intersection) and aggregation times, which are
+ * summed over all worker threads (their sum may thus exceed the wall time of
+ * the join).
+ * Counters are collected per target feature (per source feature when the
+ * join planner chose to index targets) in a {@link Probe}, and added to the
+ * report once per feature, so that worker threads seldom contend.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AggregationReport {
+
+    /**
+     * Phases of an aggregation run.
+     */
+    public enum Phase {
+        /** Layer statistics computed by the join planner. */
+        PLAN,
+        /** Spatial index construction (or retrieval from the cache). */
+        INDEX,
+        /** Extraction of numeric source attributes into columns. */
+        COLUMNS,
+        /** Join loop (wall time). */
+        JOIN,
+        /**
+         * Candidate search in the spatial index (detailed timing). The tree
+         * traversal of the dual-tree engine is only counted in JOIN.
+         */
+        QUERY,
+        /** Spatial predicate evaluation (detailed timing). */
+        PREDICATE,
+        /** Intersection of source and target geometries (detailed timing). */
+        OVERLAY,
+        /** Accumulation and computation of aggregated values (detailed timing). */
+        AGGREGATION,
+        /** Creation of the result collection. */
+        OUTPUT
+    }
+
+    /**
+     * Timings and counters of a single target (or source) feature. A Probe
+     * is used by a single thread.
+     */
+    static final class Probe {
+        final boolean detailed;
+        long query, predicate, overlay, aggregation;
+        int candidates, hits, overlays;
+
+        Probe(boolean detailed) {
+            this.detailed = detailed;
+        }
+
+        /**
+         * Return the current time in nanoseconds, or 0 if detailed timing is
+         * disabled.
+         */
+        long now() {
+            return detailed ? System.nanoTime() : 0L;
+        }
+    }
+
+    private final long[] wallNanos = new long[Phase.values().length];
+    private final LongAdder[] threadNanos = new LongAdder[Phase.values().length];
+    private final LongAdder features = new LongAdder();
+    private final LongAdder candidates = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder overlays = new LongAdder();
+    private final LongAccumulator maxCandidates = new LongAccumulator(Math::max, 0L);
+    private final Map<String,Object> properties = new LinkedHashMap<>();
+    private long totalNanos;
+
+    AggregationReport() {
+        for (int i = 0 ; i < threadNanos.length ; i++) threadNanos[i] = new LongAdder();
+    }
+
+    /**
+     * Record a property of the run (engine, predicate, functions, sizes...).
+     */
+    void setProperty(String name, Object value) {
+        properties.put(name, value);
+    }
+
+    void addWallTime(Phase phase, long nanos) {
+        wallNanos[phase.ordinal()] += nanos;
+    }
+
+    void setTotalTime(long nanos) {
+        totalNanos = nanos;
+    }
+
+    void add(Probe probe) {
+        features.increment();
+        candidates.add(probe.candidates);
+        hits.add(probe.hits);
+        overlays.add(probe.overlays);
+        maxCandidates.accumulate(probe.candidates);
+        if (probe.detailed) {
+            threadNanos[Phase.QUERY.ordinal()].add(probe.query);
+            threadNanos[Phase.PREDICATE.ordinal()].add(probe.predicate);
+            threadNanos[Phase.OVERLAY.ordinal()].add(probe.overlay);
+            threadNanos[Phase.AGGREGATION.ordinal()].add(probe.aggregation);
+        }
+    }
+
+    /**
+     * Add timings and counters of other (a partial run, e.g. a tile) to
+     * this report. Properties of other are only added if this report does
+     * not have them yet.
+     */
+    void add(AggregationReport other) {
+        for (int i = 0 ; i < wallNanos.length ; i++) {
+            wallNanos[i] += other.wallNanos[i];
+            threadNanos[i].add(other.threadNanos[i].sum());
+        }
+        features.add(other.features.sum());
+        candidates.add(other.candidates.sum());
+        hits.add(other.hits.sum());
+        overlays.add(other.overlays.sum());
+        maxCandidates.accumulate(other.maxCandidates.get());
+        for (Map.Entry<String,Object> entry : other.properties.entrySet()) {
+            properties.putIfAbsent(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Return the time spent in phase, in nanoseconds : wall time for PLAN,
+     * INDEX, JOIN and OUTPUT, time summed over worker threads for the
+     * detailed phases of the join.
+     */
+    public long getNanos(Phase phase) {
+        return wallNanos[phase.ordinal()] + threadNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * Return the wall time of the whole run, in nanoseconds.
+     */
+    public long getTotalNanos() { return totalNanos; }
+
+    /**
+     * Return the number of features for which candidates have been searched.
+     */
+    public long getFeatures() { return features.sum(); }
+
+    /**
+     * Return the number of candidate pairs returned by the spatial index.
+     */
+    public long getCandidates() { return candidates.sum(); }
+
+    /**
+     * Return the number of candidate pairs satisfying the spatial predicate.
+     */
+    public long getHits() { return hits.sum(); }
+
+    /**
+     * Return the ratio of candidates satisfying the spatial predicate.
+     */
+    public double getHitRatio() {
+        long c = getCandidates();
+        return c == 0 ? 0.0 : (double)getHits() / c;
+    }
+
+    /**
+     * Return the number of intersection (overlay) computations.
+     */
+    public long getOverlays() { return overlays.sum(); }
+
+    /**
+     * Return the largest number of candidates of a single feature.
+     */
+    public long getMaxCandidates() { return maxCandidates.get(); }
+
+    /**
+     * Return the report as an ordered map of names to values (times in
+     * milliseconds).
+     */
+    public Map<String,Object> toMap() {
+        Map<String,Object> map = new LinkedHashMap<>(properties);
+        map.put("totalMs", millis(totalNanos));
+        for (Phase phase : Phase.values()) {
+            map.put(phase.name().toLowerCase(Locale.ROOT) + "Ms", millis(getNanos(phase)));
+        }
+        map.put("features", getFeatures());
+        map.put("candidates", getCandidates());
+        map.put("hits", getHits());
+        map.put("hitRatio", getHitRatio());
+        map.put("overlays", getOverlays());
+        map.put("maxCandidates", getMaxCandidates());
+        return map;
+    }
+
+    /**
+     * Return the report as a JSON object.
+     */
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String,Object> entry : toMap().entrySet()) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append('"').append(escape(entry.getKey())).append("\": ");
+            Object value = entry.getValue();
+            if (value instanceof Number) sb.append(value);
+            else sb.append('"').append(escape(String.valueOf(value))).append('"');
+        }
+        return sb.append("}").toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String,Object> entry : toMap().entrySet()) {
+            sb.append(entry.getKey()).append(" : ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    private static String escape(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : s.toCharArray()) {
+            if (c == '"' || c == '\\') sb.append('\\').append(c);
+            else if (c < 0x20) sb.append(String.format("\\u%04x", (int)c));
+            else sb.append(c);
+        }
+        return sb.toString();
+    }
+
+}
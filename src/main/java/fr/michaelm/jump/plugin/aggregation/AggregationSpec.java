@@ -0,0 +1,108 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An aggregation to compute in a spatial join : the source attribute to
+ * aggregate (which may also be the geometry, or the geometry length or area
+ * pseudo-attributes) and the AggregationFunction to apply on it.
+ * Several AggregationSpecs can be computed in a single pass.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AggregationSpec {
+
+    // function(attribute), function name may itself contain parenthesis,
+    // optionally followed by +null to aggregate null values
+    private static final Pattern SPEC = Pattern.compile("^(.+)\\((.+)\\)\\s*(\\+\\s*(?i:null))?$");
+
+    private final String attribute;
+    private final AggregationFunction function;
+    private final boolean ignore_null;
+
+    public AggregationSpec(String attribute, AggregationFunction function,
+                           boolean ignore_null) {
+        this.attribute = attribute;
+        this.function = function;
+        this.ignore_null = ignore_null;
+    }
+
+    /**
+     * Return the name of the source attribute to aggregate.
+     */
+    public String getAttribute() { return attribute; }
+
+    /**
+     * Return the AggregationFunction to apply.
+     */
+    public AggregationFunction getFunction() { return function; }
+
+    /**
+     * Return true if null values must be ignored.
+     */
+    public boolean isIgnoreNull() { return ignore_null; }
+
+    /**
+     * Parse a list of aggregations written as function(attribute) and
+     * separated by semi-colons, ex. "Sum(population); Max(income)".
+     * Function names are the localized names of AggregationFunctions.
+     * Null values are ignored, unless the aggregation is followed by +null,
+     * ex. "Count(income)+null".
+     * @param text the text to parse
+     * @return the list of AggregationSpecs (empty if text is empty)
+     * @throws IllegalArgumentException if an item cannot be parsed or
+     * refers to an unknown function
+     */
+    public static List<AggregationSpec> parse(String text) {
+        List<AggregationSpec> specs = new ArrayList<>();
+        if (text == null) return specs;
+        for (String item : text.split(";")) {
+            item = item.trim();
+            if (item.isEmpty()) continue;
+            Matcher matcher = SPEC.matcher(item);
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException(item);
+            }
+            AggregationFunction function =
+                AggregationFunction.getFunction(matcher.group(1).trim());
+            if (function == null) {
+                throw new IllegalArgumentException(item);
+            }
+            specs.add(new AggregationSpec(matcher.group(2).trim(), function,
+                matcher.group(3) == null));
+        }
+        return specs;
+    }
+
+    public String toString() {
+        return function.getName() + "(" + attribute + ")" + (ignore_null ? "" : "+null");
+    }
+
+}
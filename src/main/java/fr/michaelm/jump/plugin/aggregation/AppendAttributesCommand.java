@@ -0,0 +1,204 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.workbench.model.FeatureEventType;
+import com.vividsolutions.jump.workbench.model.Layer;
+import com.vividsolutions.jump.workbench.model.LayerEventType;
+import com.vividsolutions.jump.workbench.model.UndoableCommand;
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An undoable command writing aggregated values into the features of the
+ * target layer, instead of replacing the layer by a new dataset.
+ * If aggregated attributes are missing from the layer schema, the layer
+ * features are moved to a new collection whose schema is a copy of the
+ * layer schema followed by the missing attributes, and the attribute arrays
+ * of all the layer features are extended in place (features which have not
+ * been aggregated get null values) : features are not copied. Aggregated
+ * geometries replace target geometries. Targets without aggregated values
+ * (empty aggregated geometry) are left unchanged.
+ * Undo restores previous values and geometries, and, if attributes have
+ * been appended, the previous schema and collection of the layer (the
+ * schema itself is never modified).
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class AppendAttributesCommand extends UndoableCommand {
+
+    private final Layer layer;
+    private final List<Feature> targets;
+    private final Object[][] values;
+    // aggregated attributes (values[i][j + 1] being the value of names[j])
+    private final String[] names;
+    private final AttributeType[] types;
+    // collection and schema of the layer before execute, if execute has
+    // appended attributes (null otherwise)
+    private FeatureCollection oldCollection;
+    private FeatureSchema oldSchema;
+    // previous values of aggregated attributes and previous geometries
+    private Object[][] oldValues;
+    private Geometry[] oldGeometries;
+
+    /**
+     * @param name the name of the command
+     * @param layer the target layer
+     * @param targets target features, in the order of values
+     * @param values aggregated values of each target (may be null, see
+     *               {@link AggregationEngine#aggregateValues})
+     * @param valuesSchema the schema of aggregated values : aggregated
+     *                     geometry followed by aggregated attributes
+     */
+    AppendAttributesCommand(String name, Layer layer, List<Feature> targets,
+                            Object[][] values, FeatureSchema valuesSchema) {
+        super(name, layer);
+        this.layer = layer;
+        this.targets = targets;
+        this.values = values;
+        int n = valuesSchema.getAttributeCount() - 1;
+        names = new String[n];
+        types = new AttributeType[n];
+        for (int i = 0 ; i < n ; i++) {
+            names[i] = valuesSchema.getAttributeName(i + 1);
+            types[i] = valuesSchema.getAttributeType(i + 1);
+        }
+    }
+
+    /**
+     * Return true if aggregated attributes of valuesSchema can be written in
+     * layer : attributes of layer having the same name as an aggregated
+     * attribute (from a previous run) must have the same type.
+     */
+    static boolean canAppend(Layer layer, FeatureSchema valuesSchema) {
+        FeatureSchema schema = layer.getFeatureCollectionWrapper().getFeatureSchema();
+        for (int i = 1 ; i < valuesSchema.getAttributeCount() ; i++) {
+            String name = valuesSchema.getAttributeName(i);
+            if (schema.hasAttribute(name) &&
+                schema.getAttributeType(name) != valuesSchema.getAttributeType(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void execute() {
+        FeatureSchema schema = layer.getFeatureCollectionWrapper().getFeatureSchema();
+        FeatureSchema newSchema = null;
+        for (int i = 0 ; i < names.length ; i++) {
+            if (!schema.hasAttribute(names[i])) {
+                if (newSchema == null) newSchema = (FeatureSchema)schema.clone();
+                newSchema.addAttribute(names[i], types[i]);
+            }
+        }
+        oldCollection = null;
+        oldSchema = null;
+        if (newSchema != null) {
+            oldCollection = layer.getFeatureCollectionWrapper().getUltimateWrappee();
+            oldSchema = schema;
+            setSchema(newSchema);
+            layer.setFeatureCollection(new FeatureDataset(oldCollection.getFeatures(), newSchema));
+            schema = newSchema;
+        }
+        int[] indexes = new int[names.length];
+        for (int j = 0 ; j < names.length ; j++) indexes[j] = schema.getAttributeIndex(names[j]);
+        oldValues = new Object[values.length][];
+        oldGeometries = new Geometry[values.length];
+        List<Feature> modified = new ArrayList<>();
+        List<Feature> reshaped = new ArrayList<>();
+        for (int i = 0 ; i < values.length ; i++) {
+            if (values[i] == null) continue;
+            Feature target = targets.get(i);
+            oldValues[i] = new Object[names.length];
+            for (int j = 0 ; j < names.length ; j++) {
+                oldValues[i][j] = target.getAttribute(indexes[j]);
+                target.setAttribute(indexes[j], values[i][j + 1]);
+            }
+            oldGeometries[i] = target.getGeometry();
+            if (values[i][0] != null && values[i][0] != oldGeometries[i]) {
+                target.setGeometry((Geometry)values[i][0]);
+                reshaped.add(target);
+            }
+            modified.add(target);
+        }
+        fireChanged(modified, reshaped);
+    }
+
+    @Override
+    public void unexecute() {
+        FeatureSchema schema = layer.getFeatureCollectionWrapper().getFeatureSchema();
+        List<Feature> modified = new ArrayList<>();
+        List<Feature> reshaped = new ArrayList<>();
+        for (int i = 0 ; i < values.length ; i++) {
+            if (oldValues[i] == null) continue;
+            Feature target = targets.get(i);
+            for (int j = 0 ; j < names.length ; j++) {
+                target.setAttribute(schema.getAttributeIndex(names[j]), oldValues[i][j]);
+            }
+            if (target.getGeometry() != oldGeometries[i]) {
+                target.setGeometry(oldGeometries[i]);
+                reshaped.add(target);
+            }
+            modified.add(target);
+        }
+        if (oldCollection != null) {
+            // appended attributes are the last ones of the new schema
+            setSchema(oldSchema);
+            layer.setFeatureCollection(oldCollection);
+        }
+        fireChanged(modified, reshaped);
+    }
+
+    // set the schema of all the layer features, and the length of their
+    // attribute arrays
+    private void setSchema(FeatureSchema schema) {
+        int length = schema.getAttributeCount();
+        for (Feature feature : layer.getFeatureCollectionWrapper().getFeatures()) {
+            feature.setSchema(schema);
+            Object[] attributes = feature.getAttributes();
+            if (attributes.length != length) feature.setAttributes(Arrays.copyOf(attributes, length));
+        }
+    }
+
+    // one event for all the modified features
+    private void fireChanged(List<Feature> modified, List<Feature> reshaped) {
+        if (oldCollection != null) layer.fireLayerChanged(LayerEventType.METADATA_CHANGED);
+        layer.getLayerManager().fireFeaturesChanged(modified,
+            FeatureEventType.ATTRIBUTES_MODIFIED, layer);
+        if (!reshaped.isEmpty()) {
+            layer.getLayerManager().fireFeaturesChanged(reshaped,
+                FeatureEventType.GEOMETRY_MODIFIED, layer);
+        }
+        layer.setFeatureCollectionModified(true);
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.Feature;
+
+import java.util.function.IntFunction;
+
+/**
+ * Numeric values of one source attribute, extracted once before the join
+ * into a primitive array indexed by source feature id, plus a bitmap of
+ * null values. The join loop reads primitives from the column instead of
+ * boxed values from the features, and passes them to the primitive
+ * accumulate methods of {@link AggregationFunction.Accumulator}.
+ * A column is read-only once extracted and can be shared by threads.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+final class AttributeColumn {
+
+    private final AttributeType type;
+    private final double[] values;
+    // bit id is set if the value of feature id is null
+    private final long[] nulls;
+
+    /**
+     * Extract the values of attribute attributeIndex of features 0 to
+     * size-1.
+     * @param type INTEGER or DOUBLE
+     */
+    AttributeColumn(IntFunction<Feature> features, int size, int attributeIndex,
+                    AttributeType type) {
+        this.type = type;
+        values = new double[size];
+        nulls = new long[(size + 63) >>> 6];
+        for (int id = 0 ; id < size ; id++) {
+            Object value = features.apply(id).getAttribute(attributeIndex);
+            if (value == null) nulls[id >>> 6] |= 1L << id;
+            else values[id] = ((Number)value).doubleValue();
+        }
+    }
+
+    /**
+     * Return true if values of type can be extracted into a column.
+     */
+    static boolean isColumnar(AttributeType type) {
+        return type == AttributeType.INTEGER || type == AttributeType.DOUBLE;
+    }
+
+    boolean isNull(int id) {
+        return (nulls[id >>> 6] & (1L << id)) != 0;
+    }
+
+    double get(int id) {
+        return values[id];
+    }
+
+    /**
+     * Add the value of feature id to accumulator, without boxing it.
+     */
+    void accumulate(AggregationFunction.Accumulator accumulator, int id) {
+        if (isNull(id)) accumulator.accumulate(null);
+        else if (type == AttributeType.INTEGER) accumulator.accumulate((int)values[id]);
+        else accumulator.accumulate(values[id]);
+    }
+
+}
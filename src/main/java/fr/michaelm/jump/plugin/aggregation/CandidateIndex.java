@@ -0,0 +1,56 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.function.IntConsumer;
+
+/**
+ * A read-only index of features where features are identified by an int.
+ * It returns the candidate features of a spatial join.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+interface CandidateIndex {
+
+    /**
+     * Return the number of indexed features.
+     */
+    int size();
+
+    /**
+     * Return the feature identified by id.
+     */
+    Feature getFeature(int id);
+
+    /**
+     * Call visitor with the id of each feature whose envelope intersects
+     * envelope.
+     */
+    void query(Envelope envelope, IntConsumer visitor);
+
+}
@@ -0,0 +1,207 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.Boundable;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Spatial join of two {@link FeatureIndex}es by a synchronized traversal of
+ * their R-trees : the upper levels of the source tree are traversed once per
+ * target node instead of once per target feature.
+ * Candidate pairs are grouped by target feature. The target tree can be
+ * partitioned into subtrees which are joined independently (e.g. by several
+ * threads).
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class DualTreeJoin {
+
+    /**
+     * Receives the candidate source features of a target feature.
+     */
+    interface CandidateConsumer {
+        /**
+         * @param target id of the target feature
+         * @param sources ids of the candidate source features, in ascending order
+         * @param count number of candidates in sources
+         */
+        void accept(int target, int[] sources, int count);
+    }
+
+    /**
+     * Maximum level of the subtrees returned by {@link #partition(int, int)}
+     * (a level 1 subtree has at most node capacity squared target features).
+     */
+    static final int MAX_PARTITION_LEVEL = 1;
+
+    private final FeatureIndex targets;
+    private final FeatureIndex sources;
+    private final double distance;
+
+    /**
+     * @param distance maximum distance between a target and a source envelope
+     *                 (0 for intersecting envelopes)
+     */
+    DualTreeJoin(FeatureIndex targets, FeatureIndex sources, double distance) {
+        this.targets = targets;
+        this.sources = sources;
+        this.distance = distance;
+    }
+
+    /**
+     * Split the target tree into at least n subtrees (if the tree is deep
+     * enough) covering all target features, none of which has a level
+     * greater than maxLevel, so that the candidate pairs buffered by the
+     * join of a subtree are bounded whatever the size of the tree.
+     */
+    List<Boundable> partition(int n, int maxLevel) {
+        List<Boundable> partitions = new ArrayList<>();
+        // the root of an empty tree (or of a tree of empty geometries) has
+        // no bounds
+        if (targets.size() == 0 || targets.getRoot().getBounds() == null) return partitions;
+        partitions.add(targets.getRoot());
+        while (partitions.size() < n || level(partitions.get(0)) > maxLevel) {
+            List<Boundable> children = new ArrayList<>();
+            for (Boundable node : partitions) {
+                // level 0 nodes have only items as children
+                if (node instanceof AbstractNode && ((AbstractNode)node).getLevel() > 0) {
+                    children.addAll(((AbstractNode)node).getChildBoundables());
+                } else {
+                    children.add(node);
+                }
+            }
+            if (children.size() == partitions.size()) break;
+            partitions = children;
+        }
+        return partitions;
+    }
+
+    /**
+     * Join the target features of subtree with source features, and call
+     * consumer once for each target feature of subtree, including target
+     * features without candidate, in ascending id order.
+     */
+    void join(Boundable subtree, CandidateConsumer consumer) {
+        PairBuffer pairs = new PairBuffer();
+        if (sources.size() > 0 && sources.getRoot().getBounds() != null) {
+            join(subtree, sources.getRoot(), pairs);
+        }
+        long[] sorted = pairs.toSortedArray();
+        int size = pairs.size;
+        int[] subtreeTargets = items(subtree);
+        Arrays.sort(subtreeTargets);
+        int[] candidates = new int[16];
+        int p = 0;
+        for (int target : subtreeTargets) {
+            int count = 0;
+            while (p < size && (int)(sorted[p] >>> 32) == target) {
+                if (count == candidates.length) {
+                    candidates = Arrays.copyOf(candidates, count * 2);
+                }
+                candidates[count++] = (int)sorted[p++];
+            }
+            consumer.accept(target, candidates, count);
+        }
+    }
+
+    private void join(Boundable target, Boundable source, PairBuffer pairs) {
+        if (((Envelope)target.getBounds()).distance((Envelope)source.getBounds()) > distance) {
+            return;
+        }
+        int targetLevel = level(target);
+        int sourceLevel = level(source);
+        if (targetLevel < 0 && sourceLevel < 0) {
+            pairs.add((Integer)((ItemBoundable)target).getItem(),
+                      (Integer)((ItemBoundable)source).getItem());
+        } else if (targetLevel == sourceLevel) {
+            for (Object t : ((AbstractNode)target).getChildBoundables()) {
+                for (Object s : ((AbstractNode)source).getChildBoundables()) {
+                    join((Boundable)t, (Boundable)s, pairs);
+                }
+            }
+        } else if (targetLevel > sourceLevel) {
+            for (Object t : ((AbstractNode)target).getChildBoundables()) {
+                join((Boundable)t, source, pairs);
+            }
+        } else {
+            for (Object s : ((AbstractNode)source).getChildBoundables()) {
+                join(target, (Boundable)s, pairs);
+            }
+        }
+    }
+
+    // level of a node in the tree, -1 for items
+    private static int level(Boundable boundable) {
+        return boundable instanceof AbstractNode ? ((AbstractNode)boundable).getLevel() : -1;
+    }
+
+    // ids of the items of a subtree
+    private static int[] items(Boundable subtree) {
+        List<Integer> list = new ArrayList<>();
+        collectItems(subtree, list);
+        int[] items = new int[list.size()];
+        for (int i = 0 ; i < items.length ; i++) items[i] = list.get(i);
+        return items;
+    }
+
+    private static void collectItems(Boundable boundable, List<Integer> items) {
+        if (boundable instanceof ItemBoundable) {
+            items.add((Integer)((ItemBoundable)boundable).getItem());
+        } else {
+            for (Object child : ((AbstractNode)boundable).getChildBoundables()) {
+                collectItems((Boundable)child, items);
+            }
+        }
+    }
+
+    /**
+     * Growable array of (target, source) pairs packed into longs, so that
+     * sorting the array groups pairs by target, then by source.
+     */
+    private static class PairBuffer {
+
+        long[] pairs = new long[64];
+        int size;
+
+        void add(int target, int source) {
+            if (size == pairs.length) pairs = Arrays.copyOf(pairs, size * 2);
+            pairs[size++] = ((long)target << 32) | source;
+        }
+
+        // pairs are sorted in place : the buffer is not used afterwards
+        long[] toSortedArray() {
+            Arrays.sort(pairs, 0, size);
+            return pairs;
+        }
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.AbstractNode;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A read-only spatial index of a feature collection, where features are
+ * identified by their position in the collection at indexing time.
+ * Identifying features by an int makes it possible to store per-feature
+ * data (accumulators, cached values...) in arrays.
+ * The index is built by the constructor and can be queried by several
+ * threads.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class FeatureIndex implements CandidateIndex {
+
+    private final Feature[] features;
+    private final STRtree tree = new STRtree();
+
+    FeatureIndex(FeatureCollection collection) {
+        List<Feature> list = collection.getFeatures();
+        features = list.toArray(new Feature[0]);
+        for (int i = 0 ; i < features.length ; i++) {
+            tree.insert(features[i].getGeometry().getEnvelopeInternal(), i);
+        }
+        // STRtree is built lazily on first query : build it now, before it is
+        // shared between threads
+        tree.build();
+    }
+
+    @Override
+    public int size() { return features.length; }
+
+    @Override
+    public Feature getFeature(int id) { return features[id]; }
+
+    /**
+     * Return the root node of the R-tree (items are feature ids).
+     */
+    AbstractNode getRoot() { return tree.getRoot(); }
+
+    @Override
+    public void query(Envelope envelope, IntConsumer visitor) {
+        tree.query(envelope, item -> visitor.accept((Integer)item));
+    }
+
+}
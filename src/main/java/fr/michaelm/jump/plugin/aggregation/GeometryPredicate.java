@@ -24,9 +24,20 @@
 package fr.michaelm.jump.plugin.aggregation;
 
 import com.vividsolutions.jump.I18N;
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.algorithm.locate.SimplePointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.operation.distance.IndexedFacetDistance;
 
 import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.ToIntFunction;
 
 
 /**
@@ -108,6 +119,56 @@ public abstract class GeometryPredicate {
 
   public abstract boolean isTrue(Geometry geom0, Geometry geom1, double[] param);
 
+  /**
+   * A predicate where one of the two geometries has been fixed and
+   * prepared once to be tested against many candidates for the other one.
+   */
+  public interface PreparedPredicate {
+    boolean isTrue(Geometry candidate);
+  }
+
+  /**
+   * Return a PreparedPredicate equivalent to isTrue(geom0, geom1, param)
+   * for any geom0. Subclasses override this method to use a
+   * {@link PreparedGeometry}, swapping arguments where needed, so that the
+   * cost of building geom1 edge graph is paid once for all its candidates.
+   * @param geom1 the geometry shared by all the tests (target geometry)
+   * @param param predicate parameters
+   */
+  public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+    return geom0 -> isTrue(geom0, geom1, param);
+  }
+
+  /**
+   * Return a PreparedPredicate equivalent to isTrue(geom0, geom1, param)
+   * for any geom1. This is the counterpart of
+   * {@link #prepare(Geometry, double[])} used when the join iterates over
+   * the first (source) geometries.
+   * @param geom0 the geometry shared by all the tests (source geometry)
+   * @param param predicate parameters
+   */
+  public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+    return geom1 -> isTrue(geom0, geom1, param);
+  }
+
+  /**
+   * Return a test on the {@link Location} of a point geom0 relative to a
+   * polygonal geom1, equivalent to isTrue(geom0, geom1, param), or null if
+   * this predicate cannot be reduced to a point-in-polygon test.
+   */
+  public IntPredicate getPointInAreaTest(final double[] param) {
+    return null;
+  }
+
+  /**
+   * Return the distance d such that a point geom0 and a point geom1 satisfy
+   * this predicate if and only if their distance is less than or equal to d,
+   * or NaN if this predicate cannot be reduced to a point distance test.
+   */
+  public double getPointDistance(final double[] param) {
+    return Double.NaN;
+  }
+
   private static class IntersectsPredicate extends GeometryPredicate {
     public IntersectsPredicate() {
       super(i18n.get("predicate.Intersects"));
@@ -115,6 +176,17 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.intersects(geom1);
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom1);
+      return pg::intersects;
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom0);
+      return pg::intersects;
+    }
+    public IntPredicate getPointInAreaTest(final double[] param) {
+      return location -> location != Location.EXTERIOR;
+    }
   }
 
   private static class PlainIntersectsPredicate extends GeometryPredicate {
@@ -124,6 +196,27 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.relate(geom1, "T********");
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom1);
+      // interiors cannot intersect if geometries are disjoint, and they do
+      // if geom0 lies in the interior of geom1 : full relate is only
+      // computed for geometries crossing geom1 boundary
+      // (containsProperly is only optimized for polygons)
+      final boolean polygonal = geom1 instanceof Polygonal;
+      return geom0 -> pg.intersects(geom0) &&
+          ((polygonal && pg.containsProperly(geom0)) || geom0.relate(geom1, "T********"));
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      // interior intersection is symmetric
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom0);
+      final boolean polygonal = geom0 instanceof Polygonal;
+      return geom1 -> pg.intersects(geom1) &&
+          ((polygonal && pg.containsProperly(geom1)) || geom0.relate(geom1, "T********"));
+    }
+    public IntPredicate getPointInAreaTest(final double[] param) {
+      // the interior of a point is the point itself
+      return location -> location == Location.INTERIOR;
+    }
   }
 
   /*private static class ContainsPredicate extends GeometryPredicate {
@@ -139,6 +232,15 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.covers(geom1);
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      // geom0 covers geom1 <=> geom1 is covered by geom0
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom1);
+      return pg::coveredBy;
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom0);
+      return pg::covers;
+    }
   }
 
   private static class CoveredByPredicate extends GeometryPredicate {
@@ -148,6 +250,18 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.coveredBy(geom1);
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      // geom0 is covered by geom1 <=> geom1 covers geom0
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom1);
+      return pg::covers;
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom0);
+      return pg::coveredBy;
+    }
+    public IntPredicate getPointInAreaTest(final double[] param) {
+      return location -> location != Location.EXTERIOR;
+    }
   }
 
   /*private static class CrossesPredicate extends GeometryPredicate {
@@ -168,6 +282,15 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.equals(geom1);
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      // topologically equal geometries have the same envelope
+      return geom0 -> geom0.getEnvelopeInternal().equals(geom1.getEnvelopeInternal()) &&
+          geom0.equals(geom1);
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      return geom1 -> geom0.getEnvelopeInternal().equals(geom1.getEnvelopeInternal()) &&
+          geom0.equals(geom1);
+    }
   }
 
   /*private static class OverlapsPredicate extends GeometryPredicate {
@@ -188,6 +311,19 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.within(geom1);
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      // geom0 within geom1 <=> geom1 contains geom0
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom1);
+      return pg::contains;
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      final PreparedGeometry pg = PreparedGeometryFactory.prepare(geom0);
+      return pg::within;
+    }
+    public IntPredicate getPointInAreaTest(final double[] param) {
+      // a point on the boundary is not within the polygon
+      return location -> location == Location.INTERIOR;
+    }
   }
 
   public static class WithinDistancePredicate extends GeometryPredicate {
@@ -197,6 +333,74 @@ public abstract class GeometryPredicate {
     public boolean isTrue(Geometry geom0, Geometry geom1, double[] param) {
       return geom0.isWithinDistance(geom1, param[0]);
     }
+    public PreparedPredicate prepare(final Geometry geom1, final double[] param) {
+      return new IndexedDistancePredicate(geom1, param[0]);
+    }
+    public PreparedPredicate prepareFirst(final Geometry geom0, final double[] param) {
+      // distance is symmetric
+      return new IndexedDistancePredicate(geom0, param[0]);
+    }
+    public double getPointDistance(final double[] param) {
+      return param[0];
+    }
+  }
+
+  /**
+   * Tests if candidates are within a distance of a fixed geometry. Segments
+   * of the fixed geometry are indexed (IndexedFacetDistance) so that a
+   * candidate is tested in sub-linear time, instead of comparing all pairs
+   * of segments. Facet distance ignores interiors : a candidate is also
+   * within distance if one of its components lies in the fixed geometry
+   * interior, or the other way round.
+   * The index is only built for fixed geometries having many vertices, and
+   * only once a candidate passed the envelope test.
+   */
+  private static final class IndexedDistancePredicate implements PreparedPredicate {
+
+    // under this number of vertices, plain isWithinDistance is fast enough
+    private static final int MIN_INDEXED_POINTS = 32;
+
+    private final Geometry geometry;
+    private final double distance;
+    private final boolean indexed;
+    private IndexedFacetDistance facetDistance;
+    private IndexedPointInAreaLocator locator;
+
+    IndexedDistancePredicate(Geometry geometry, double distance) {
+      this.geometry = geometry;
+      this.distance = distance;
+      // heterogeneous collections are left to plain isWithinDistance
+      this.indexed = geometry.getNumPoints() >= MIN_INDEXED_POINTS &&
+          geometry.getClass() != GeometryCollection.class;
+    }
+
+    public boolean isTrue(Geometry candidate) {
+      if (geometry.isEmpty() || candidate.isEmpty()) return false;
+      if (geometry.getEnvelopeInternal().distance(candidate.getEnvelopeInternal()) > distance) {
+        return false;
+      }
+      if (!indexed || candidate.getClass() == GeometryCollection.class) {
+        return geometry.isWithinDistance(candidate, distance);
+      }
+      if (facetDistance == null) {
+        facetDistance = new IndexedFacetDistance(geometry);
+        if (geometry instanceof Polygonal) locator = new IndexedPointInAreaLocator(geometry);
+      }
+      if (locator != null && hasComponentIn(candidate, locator::locate)) return true;
+      if (candidate instanceof Polygonal && hasComponentIn(geometry,
+          c -> SimplePointInAreaLocator.locate(c, candidate))) return true;
+      return facetDistance.isWithinDistance(candidate, distance);
+    }
+
+    // true if a component of g has a vertex which is not in the exterior
+    // of the area described by locator
+    private static boolean hasComponentIn(Geometry g, ToIntFunction<Coordinate> locator) {
+      for (int i = 0 ; i < g.getNumGeometries() ; i++) {
+        Coordinate c = g.getGeometryN(i).getCoordinate();
+        if (c != null && locator.applyAsInt(c) != Location.EXTERIOR) return true;
+      }
+      return false;
+    }
   }
   /*public static class SimilarPredicate extends GeometryPredicate {
       public SimilarPredicate() {  super(GenericNames.SIMILAR, 1);  }
@@ -0,0 +1,81 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.I18N;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Algorithms available to find the candidate pairs of a spatial join.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public enum JoinEngine {
+
+    /**
+     * One index query per feature of the non-indexed layer (the side to index
+     * is chosen by {@link JoinPlanner}). Point sources related to polygonal
+     * targets by a predicate reducing to a point-in-polygon test are joined
+     * through a {@link PointIndex} and a point locator per target, and
+     * point sources within a distance of point targets by distance queries
+     * of a {@link PointIndex}.
+     */
+    NESTED_LOOP,
+
+    /**
+     * Synchronized traversal of the R-trees of both layers.
+     */
+    DUAL_TREE,
+
+    /**
+     * Source envelopes sorted by minX into primitive arrays, swept by target
+     * envelopes (for points and small source envelopes).
+     */
+    PLANE_SWEEP;
+
+    private static final I18N i18n = I18N.getInstance("fr.michaelm.jump.plugin.aggregation");
+
+    public String getName() {
+        return i18n.get("join-engine." + name());
+    }
+
+    static List<String> getNames() {
+        List<String> names = new ArrayList<>();
+        for (JoinEngine engine : values()) {
+            names.add(engine.getName());
+        }
+        return names;
+    }
+
+    static JoinEngine getEngine(String name) {
+        for (JoinEngine engine : values()) {
+            if (engine.getName().equals(name)) return engine;
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Chooses which side of a spatial join must be indexed, and which side must
+ * be iterated over.
+ * <p>
+ * The default plan indexes the source layer and queries the index once per
+ * target feature. When the target layer is much larger than the source layer,
+ * or when source geometries are much more complex than target geometries,
+ * it is cheaper to index the target layer, to iterate over source features,
+ * and to scatter each source feature into the accumulators of the targets it
+ * is related to.
+ * </p>
+ * <p>
+ * The cost model uses feature counts, mean envelope sizes (to estimate the
+ * number of candidate pairs) and mean vertex counts (the iterated geometry
+ * is prepared, the indexed one is not, so the cost of a predicate evaluation
+ * grows with the number of vertices of the indexed geometry).
+ * </p>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class JoinPlanner {
+
+    public enum Direction {
+        /** Index source features and iterate over target features */
+        INDEX_SOURCE,
+        /** Index target features and iterate over source features */
+        INDEX_TARGET
+    }
+
+    // relative costs of elementary operations
+    private static final double BUILD = 0.5;    // per item and per tree level
+    private static final double QUERY = 4.0;    // fixed cost of an index query
+    private static final double PREPARE = 1.0;  // per prepared vertex
+    private static final double EDGE = 1.0;     // per vertex of the non prepared geometry
+    private static final double SCATTER = 2.0;  // per pair, to find target accumulators
+
+    /**
+     * Summary statistics of a feature collection used to estimate join costs.
+     * Envelopes of all features are used, but vertices are only counted on a
+     * sample of at most SAMPLE_SIZE features, evenly spread over the
+     * collection, so that the statistics of a large layer do not cost a pass
+     * over all its vertices.
+     */
+    public static class Statistics {
+
+        static final int SAMPLE_SIZE = 4096;
+
+        final int count;
+        final Envelope extent = new Envelope();
+        final double meanWidth;
+        final double meanHeight;
+        final double meanVertices;
+
+        public Statistics(FeatureCollection collection) {
+            int n = 0, sampled = 0;
+            double width = 0.0, height = 0.0, vertices = 0.0;
+            int step = Math.max(1, collection.size() / SAMPLE_SIZE);
+            int i = 0;
+            for (Feature feature : collection.getFeatures()) {
+                boolean sample = i++ % step == 0;
+                Geometry geometry = feature.getGeometry();
+                Envelope env = geometry.getEnvelopeInternal();
+                if (env.isNull()) continue;
+                extent.expandToInclude(env);
+                width += env.getWidth();
+                height += env.getHeight();
+                if (sample) {
+                    vertices += geometry.getNumPoints();
+                    sampled++;
+                }
+                n++;
+            }
+            count = n;
+            meanWidth = n == 0 ? 0 : width / n;
+            meanHeight = n == 0 ? 0 : height / n;
+            meanVertices = sampled == 0 ? 0 : vertices / sampled;
+        }
+
+        public int getCount() { return count; }
+        public Envelope getExtent() { return extent; }
+        public double getMeanWidth() { return meanWidth; }
+        public double getMeanHeight() { return meanHeight; }
+        public double getMeanVertices() { return meanVertices; }
+    }
+
+    /**
+     * Choose the join direction with the lowest estimated cost.
+     * @param source source collection statistics
+     * @param target target collection statistics
+     * @param distance distance used to expand query envelopes (0 if the
+     *                 predicate has no distance parameter)
+     * @param sourceIndexed true if an up to date source index is available
+     * @param targetIndexed true if an up to date target index is available
+     */
+    public static Direction plan(Statistics source, Statistics target,
+                                 double distance,
+                                 boolean sourceIndexed, boolean targetIndexed) {
+        if (source.count == 0 || target.count == 0) return Direction.INDEX_SOURCE;
+        double pairs = estimatePairs(source, target, distance);
+        double sourceCost = (sourceIndexed ? 0 : BUILD * source.count * log2(source.count)) +
+            target.count * (QUERY + log2(source.count) + PREPARE * target.meanVertices) +
+            pairs * (1 + EDGE * source.meanVertices);
+        double targetCost = (targetIndexed ? 0 : BUILD * target.count * log2(target.count)) +
+            source.count * (QUERY + log2(target.count) + PREPARE * source.meanVertices) +
+            pairs * (1 + EDGE * target.meanVertices + SCATTER);
+        return targetCost < sourceCost ? Direction.INDEX_TARGET : Direction.INDEX_SOURCE;
+    }
+
+    /**
+     * Estimate the number of (source, target) pairs with intersecting
+     * envelopes, assuming features are uniformly distributed over the
+     * common extent.
+     */
+    static double estimatePairs(Statistics source, Statistics target, double distance) {
+        Envelope extent = new Envelope(source.extent);
+        extent.expandToInclude(target.extent);
+        double area = extent.getArea();
+        double overlap = (source.meanWidth + target.meanWidth + 2 * distance) *
+            (source.meanHeight + target.meanHeight + 2 * distance);
+        double probability = area > 0 ? Math.min(1.0, overlap / area) : 1.0;
+        return (double)source.count * target.count * probability;
+    }
+
+    private static double log2(int n) {
+        return Math.log(Math.max(n, 2)) / Math.log(2);
+    }
+
+}
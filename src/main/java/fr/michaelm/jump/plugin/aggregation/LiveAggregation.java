@@ -0,0 +1,255 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.task.DummyTaskMonitor;
+import com.vividsolutions.jump.workbench.model.*;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.*;
+
+/**
+ * Keeps the result layer of an aggregation up to date while the source
+ * layer is edited.
+ * <p>
+ * The source layer features are indexed in a {@link LiveFeatureIndex},
+ * which is updated when source features are added, removed or modified.
+ * Only the targets whose envelope (expanded by the distance of the
+ * relation) intersects the former or the new envelope of an edited source
+ * are aggregated again, against the updated index, and their result
+ * features are updated in the result layer. The aggregator is created once
+ * when the live aggregation starts, and reused by each update. Undoing an edit of the source
+ * layer fires the same events, and updates the results accordingly.
+ * </p>
+ * <p>
+ * Edits of target features are not followed. The live aggregation stops
+ * when the source or the result layer is removed, when the feature
+ * collection of the source or of the result layer is replaced, when result
+ * features are deleted by the user, or when another live aggregation
+ * starts on the same result layer.
+ * </p>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class LiveAggregation implements LayerListener {
+
+    // live aggregation bound to each result layer
+    private static final Map<Layer,LiveAggregation> LIVE_AGGREGATIONS =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final AggregationEngine engine;
+    private final Layer sourceLayer;
+    private final FeatureCollection sourceCollection;
+    private final List<Feature> targets;
+    private final FeatureSchema tgtSchema;
+    // result feature of each target (null if an aggregated geometry is empty)
+    private final Feature[] results;
+    private LiveFeatureIndex sourceIndex;
+    private FeatureIndex targetIndex;
+    private AggregationEngine.IndexAggregation aggregation;
+    // live result features, to tell apart the result features deleted by
+    // the user
+    private final Set<Feature> liveResults =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+    private Layer resultLayer;
+    private FeatureCollection resultCollection;
+    private FeatureSchema resultSchema;
+
+    /**
+     * @param engine the engine which computed results
+     * @param sourceLayer the source layer of the aggregation
+     * @param targets the target features of the aggregation
+     * @param tgtSchema the schema of target features
+     * @param results the result feature of each target, by position in
+     *                targets (see {@link AggregationEngine#createFeature})
+     */
+    LiveAggregation(AggregationEngine engine, Layer sourceLayer,
+                    List<Feature> targets, FeatureSchema tgtSchema, Feature[] results) {
+        this.engine = engine;
+        this.sourceLayer = sourceLayer;
+        this.sourceCollection = sourceLayer.getFeatureCollectionWrapper().getUltimateWrappee();
+        this.targets = new ArrayList<>(targets);
+        this.tgtSchema = tgtSchema;
+        this.results = results.clone();
+    }
+
+    /**
+     * Index source and target features, create the aggregator, and follow
+     * the edits of the source layer, updating the features of resultLayer
+     * (which must hold the non null results). A live aggregation previously
+     * bound to resultLayer is stopped.
+     */
+    synchronized void start(Layer resultLayer) {
+        stop(resultLayer);
+        this.resultLayer = resultLayer;
+        resultCollection = resultLayer.getFeatureCollectionWrapper().getUltimateWrappee();
+        resultSchema = resultLayer.getFeatureCollectionWrapper().getFeatureSchema();
+        for (Feature result : results) {
+            if (result != null) liveResults.add(result);
+        }
+        sourceIndex = new LiveFeatureIndex(sourceLayer.getFeatureCollectionWrapper());
+        FeatureCollection targetCollection = new FeatureDataset(tgtSchema);
+        targetCollection.addAll(targets);
+        targetIndex = new FeatureIndex(targetCollection);
+        aggregation = engine.createIndexAggregation(
+            sourceLayer.getFeatureCollectionWrapper().getFeatureSchema(), tgtSchema,
+            sourceIndex.size(), targets.size());
+        sourceLayer.getLayerManager().addLayerListener(this);
+        LIVE_AGGREGATIONS.put(resultLayer, this);
+    }
+
+    /**
+     * Stop the live aggregation bound to resultLayer, if any. This must be
+     * done before another process writes into resultLayer.
+     */
+    static void stop(Layer resultLayer) {
+        LiveAggregation liveAggregation = LIVE_AGGREGATIONS.get(resultLayer);
+        if (liveAggregation != null) liveAggregation.stop();
+    }
+
+    /**
+     * Stop following the edits of the source layer.
+     */
+    synchronized void stop() {
+        sourceLayer.getLayerManager().removeLayerListener(this);
+        LIVE_AGGREGATIONS.remove(resultLayer, this);
+        sourceIndex = null;
+        targetIndex = null;
+        aggregation = null;
+        liveResults.clear();
+    }
+
+    // true if the source and result layers still hold the feature
+    // collections of the live aggregation
+    private boolean isBound() {
+        return sourceLayer.getFeatureCollectionWrapper().getUltimateWrappee() == sourceCollection &&
+            resultLayer.getFeatureCollectionWrapper().getUltimateWrappee() == resultCollection;
+    }
+
+    public synchronized void featuresChanged(FeatureEvent e) {
+        if (aggregation == null) return;
+        if (e.getLayer() != sourceLayer && e.getLayer() != resultLayer) return;
+        if (!isBound()) {
+            stop();
+            return;
+        }
+        if (e.getLayer() == resultLayer) {
+            // results removed by update are no more in liveResults
+            if (e.getType() == FeatureEventType.DELETED) {
+                for (Feature feature : e.getFeatures()) {
+                    if (liveResults.contains(feature)) {
+                        stop();
+                        return;
+                    }
+                }
+            }
+            return;
+        }
+        // former and new envelopes of the edited sources
+        List<Envelope> envelopes = new ArrayList<>();
+        for (Feature feature : e.getFeatures()) {
+            if (e.getType() == FeatureEventType.ADDED) {
+                envelopes.add(sourceIndex.add(feature));
+            } else if (e.getType() == FeatureEventType.DELETED) {
+                envelopes.add(sourceIndex.remove(feature));
+            } else if (e.getType() == FeatureEventType.GEOMETRY_MODIFIED) {
+                envelopes.add(sourceIndex.remove(feature));
+                envelopes.add(sourceIndex.add(feature));
+            } else if (e.getType() == FeatureEventType.ATTRIBUTES_MODIFIED) {
+                envelopes.add(sourceIndex.getEnvelope(feature));
+            }
+        }
+        update(envelopes);
+    }
+
+    public synchronized void layerChanged(LayerEvent e) {
+        if (aggregation == null) return;
+        if (e.getLayerable() != sourceLayer && e.getLayerable() != resultLayer) return;
+        if (e.getType() == LayerEventType.REMOVED || !isBound()) {
+            stop();
+        }
+    }
+
+    public void categoryChanged(CategoryEvent e) {
+    }
+
+    // aggregate again the targets related to envelopes
+    private void update(List<Envelope> envelopes) {
+        BitSet touched = new BitSet(targets.size());
+        double distance = engine.getQueryDistance();
+        for (Envelope envelope : envelopes) {
+            if (envelope == null || envelope.isNull()) continue;
+            Envelope queryEnvelope = new Envelope(envelope);
+            queryEnvelope.expandBy(distance);
+            targetIndex.query(queryEnvelope, touched::set);
+        }
+        if (touched.isEmpty()) return;
+        List<Feature> touchedTargets = new ArrayList<>(touched.cardinality());
+        for (int i = touched.nextSetBit(0) ; i >= 0 ; i = touched.nextSetBit(i + 1)) {
+            touchedTargets.add(targetIndex.getFeature(i));
+        }
+        Object[][] newValues = aggregation.aggregateValues(sourceIndex, touchedTargets,
+            new DummyTaskMonitor());
+        FeatureCollection resultWrapper = resultLayer.getFeatureCollectionWrapper();
+        List<Feature> modified = new ArrayList<>();
+        boolean geometryModified = false;
+        for (int i = touched.nextSetBit(0), j = 0 ; i >= 0 ; i = touched.nextSetBit(i + 1), j++) {
+            Feature oldResult = results[i];
+            Object[] values = newValues[j];
+            if (oldResult != null && values != null) {
+                // result features are updated in place, so that the result
+                // layer keeps its feature ids, order and selection
+                Geometry geometry = oldResult.getGeometry();
+                engine.setValues(oldResult, values);
+                geometryModified |= !oldResult.getGeometry().equalsExact(geometry);
+                modified.add(oldResult);
+            } else if (oldResult != null) {
+                liveResults.remove(oldResult);
+                results[i] = null;
+                resultWrapper.remove(oldResult);
+            } else if (values != null) {
+                results[i] = engine.createFeature(resultSchema, touchedTargets.get(j), i, values);
+                liveResults.add(results[i]);
+                resultWrapper.add(results[i]);
+            }
+        }
+        if (!modified.isEmpty()) {
+            resultLayer.getLayerManager().fireFeaturesChanged(modified,
+                FeatureEventType.ATTRIBUTES_MODIFIED, resultLayer);
+            if (geometryModified) {
+                resultLayer.getLayerManager().fireFeaturesChanged(modified,
+                    FeatureEventType.GEOMETRY_MODIFIED, resultLayer);
+            }
+        }
+        resultLayer.setFeatureCollectionModified(true);
+    }
+
+}
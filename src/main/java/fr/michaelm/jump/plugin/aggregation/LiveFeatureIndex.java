@@ -0,0 +1,134 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.quadtree.Quadtree;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * A spatial index of a feature collection which can be updated when
+ * features are added, removed or moved, used by {@link LiveAggregation}.
+ * Features are identified by an int which does not change while the
+ * feature is indexed (ids of removed features are reused by features added
+ * later). The envelope of each feature at indexing time is kept, so that
+ * the former location of a moved feature is known when it is updated.
+ * <p>
+ * The index can be queried by several threads, but must not be updated
+ * while it is queried.
+ * </p>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class LiveFeatureIndex implements CandidateIndex {
+
+    private final List<Feature> features = new ArrayList<>();
+    private final List<Envelope> envelopes = new ArrayList<>();
+    private final Map<Feature,Integer> ids = new IdentityHashMap<>();
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private final Quadtree tree = new Quadtree();
+
+    LiveFeatureIndex(FeatureCollection collection) {
+        for (Feature feature : collection.getFeatures()) add(feature);
+    }
+
+    /**
+     * Return the number of ids, including the ids of removed features which
+     * have not been reused yet.
+     */
+    @Override
+    public int size() { return features.size(); }
+
+    /**
+     * Return the feature identified by id (null if it has been removed).
+     */
+    @Override
+    public Feature getFeature(int id) { return features.get(id); }
+
+    @Override
+    public void query(Envelope envelope, IntConsumer visitor) {
+        // quadtree returns all the items of the nodes intersecting envelope
+        tree.query(envelope, item -> {
+            int id = (Integer)item;
+            if (envelopes.get(id).intersects(envelope)) visitor.accept(id);
+        });
+    }
+
+    /**
+     * Index feature and return its envelope. A feature with an empty
+     * geometry gets an id, but is not inserted in the spatial index.
+     */
+    Envelope add(Feature feature) {
+        Envelope envelope = new Envelope(feature.getGeometry().getEnvelopeInternal());
+        Integer id = freeIds.poll();
+        if (id == null) {
+            id = features.size();
+            features.add(feature);
+            envelopes.add(envelope);
+        } else {
+            features.set(id, feature);
+            envelopes.set(id, envelope);
+        }
+        ids.put(feature, id);
+        // the quadtree does not support null envelopes
+        if (!envelope.isNull()) tree.insert(envelope, id);
+        return envelope;
+    }
+
+    /**
+     * Remove feature from the index and return its envelope at indexing
+     * time (null if it was not indexed).
+     */
+    Envelope remove(Feature feature) {
+        Integer id = ids.remove(feature);
+        if (id == null) return null;
+        Envelope envelope = envelopes.get(id);
+        if (!envelope.isNull()) tree.remove(envelope, id);
+        features.set(id, null);
+        envelopes.set(id, null);
+        freeIds.push(id);
+        return envelope;
+    }
+
+    /**
+     * Return the envelope of feature at indexing time (null if it is not
+     * indexed).
+     */
+    Envelope getEnvelope(Feature feature) {
+        Integer id = ids.get(feature);
+        return id == null ? null : envelopes.get(id);
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A geometry measure (length or area) of source features, indexed by
+ * source feature id. Each measure is computed lazily, the first time a
+ * source feature is aggregated, by the worker thread which needs it, and
+ * then reused for all the other targets related to the same feature.
+ * Two threads may compute the same measure concurrently : they store the
+ * same value.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+final class MeasureColumn {
+
+    // bits of a NaN never returned by Double.doubleToLongBits, marking
+    // measures which have not been computed yet
+    private static final long UNKNOWN = 0x7ff0000000000001L;
+
+    private final ToDoubleFunction<Geometry> measure;
+    private final AtomicLongArray bits;
+
+    /**
+     * @param size number of source features
+     * @param measure the measure of a source geometry
+     */
+    MeasureColumn(int size, ToDoubleFunction<Geometry> measure) {
+        this.measure = measure;
+        bits = new AtomicLongArray(size);
+        for (int id = 0 ; id < size ; id++) bits.lazySet(id, UNKNOWN);
+    }
+
+    /**
+     * Return the measure of geometry, the geometry of source feature id.
+     */
+    double get(int id, Geometry geometry) {
+        long b = bits.get(id);
+        if (b != UNKNOWN) return Double.longBitsToDouble(b);
+        double value = measure.applyAsDouble(geometry);
+        bits.lazySet(id, Double.doubleToLongBits(value));
+        return value;
+    }
+
+}
@@ -0,0 +1,230 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A packed KD-tree of point features. Point coordinates are kept in flat
+ * x/y arrays, with the int id of each point's feature (its position in the
+ * collection at indexing time), and arranged in place so that the median
+ * of each range splits it alternately by x and by y. There is no node
+ * object : the tree uses three arrays whatever the number of points,
+ * instead of an envelope and a tree entry per point in an R-tree.
+ * Window and distance queries pass point coordinates to the visitor and do
+ * not allocate memory.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class PointIndex implements CandidateIndex {
+
+    /**
+     * Visitor of the points returned by a query.
+     */
+    interface PointVisitor {
+        void visit(int id, double x, double y);
+    }
+
+    // ranges of at most NODE_SIZE points are not split, but scanned
+    private static final int NODE_SIZE = 64;
+
+    private final Feature[] features;
+    // coordinates of the non-empty points, and the id of their feature
+    private final double[] x, y;
+    private final int[] ids;
+
+    PointIndex(FeatureCollection collection) {
+        List<Feature> list = collection.getFeatures();
+        features = list.toArray(new Feature[0]);
+        int n = 0;
+        for (Feature feature : features) {
+            if (!feature.getGeometry().isEmpty()) n++;
+        }
+        // empty points are not indexed and never returned
+        x = new double[n];
+        y = new double[n];
+        ids = new int[n];
+        for (int i = 0, j = 0 ; i < features.length ; i++) {
+            Point point = (Point)features[i].getGeometry();
+            if (point.isEmpty()) continue;
+            x[j] = point.getX();
+            y[j] = point.getY();
+            ids[j++] = i;
+        }
+        sort(0, n - 1, 0);
+    }
+
+    /**
+     * Return true if all the geometries of collection are points.
+     */
+    static boolean isPuntal(FeatureCollection collection) {
+        for (Feature feature : collection.getFeatures()) {
+            Geometry geometry = feature.getGeometry();
+            if (!(geometry instanceof Point)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() { return features.length; }
+
+    @Override
+    public Feature getFeature(int id) { return features[id]; }
+
+    @Override
+    public void query(Envelope envelope, IntConsumer visitor) {
+        if (envelope.isNull()) return;
+        range(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(),
+            visitor, 0, x.length - 1, 0);
+    }
+
+    /**
+     * Call visitor with the id and the coordinates of each point lying in
+     * envelope.
+     */
+    void query(Envelope envelope, PointVisitor visitor) {
+        if (envelope.isNull()) return;
+        range(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY(),
+            visitor, 0, x.length - 1, 0);
+    }
+
+    /**
+     * Call visitor with the id and the coordinates of each point lying at
+     * a distance less or equal to distance from (cx, cy).
+     */
+    void query(double cx, double cy, double distance, PointVisitor visitor) {
+        within(cx, cy, distance * distance, distance, visitor, 0, x.length - 1, 0);
+    }
+
+    // window query in the range left..right, split by x if axis is 0
+    private void range(double minX, double minY, double maxX, double maxY,
+                       PointVisitor visitor, int left, int right, int axis) {
+        if (right - left <= NODE_SIZE) {
+            for (int i = left ; i <= right ; i++) {
+                if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY) {
+                    visitor.visit(ids[i], x[i], y[i]);
+                }
+            }
+            return;
+        }
+        int m = (left + right) >>> 1;
+        double px = x[m], py = y[m];
+        if (px >= minX && px <= maxX && py >= minY && py <= maxY) visitor.visit(ids[m], px, py);
+        if (axis == 0 ? minX <= px : minY <= py) {
+            range(minX, minY, maxX, maxY, visitor, left, m - 1, 1 - axis);
+        }
+        if (axis == 0 ? maxX >= px : maxY >= py) {
+            range(minX, minY, maxX, maxY, visitor, m + 1, right, 1 - axis);
+        }
+    }
+
+    // same as above, for visitors of ids only (so that no adapter visitor is
+    // allocated by each query)
+    private void range(double minX, double minY, double maxX, double maxY,
+                       IntConsumer visitor, int left, int right, int axis) {
+        if (right - left <= NODE_SIZE) {
+            for (int i = left ; i <= right ; i++) {
+                if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY) {
+                    visitor.accept(ids[i]);
+                }
+            }
+            return;
+        }
+        int m = (left + right) >>> 1;
+        double px = x[m], py = y[m];
+        if (px >= minX && px <= maxX && py >= minY && py <= maxY) visitor.accept(ids[m]);
+        if (axis == 0 ? minX <= px : minY <= py) {
+            range(minX, minY, maxX, maxY, visitor, left, m - 1, 1 - axis);
+        }
+        if (axis == 0 ? maxX >= px : maxY >= py) {
+            range(minX, minY, maxX, maxY, visitor, m + 1, right, 1 - axis);
+        }
+    }
+
+    // distance query in the range left..right, split by x if axis is 0
+    private void within(double cx, double cy, double d2, double d,
+                        PointVisitor visitor, int left, int right, int axis) {
+        if (right - left <= NODE_SIZE) {
+            for (int i = left ; i <= right ; i++) {
+                double dx = x[i] - cx, dy = y[i] - cy;
+                if (dx * dx + dy * dy <= d2) visitor.visit(ids[i], x[i], y[i]);
+            }
+            return;
+        }
+        int m = (left + right) >>> 1;
+        double dx = x[m] - cx, dy = y[m] - cy;
+        if (dx * dx + dy * dy <= d2) visitor.visit(ids[m], x[m], y[m]);
+        double delta = axis == 0 ? dx : dy;
+        if (delta >= -d) within(cx, cy, d2, d, visitor, left, m - 1, 1 - axis);
+        if (delta <= d) within(cx, cy, d2, d, visitor, m + 1, right, 1 - axis);
+    }
+
+    // arrange points of the range left..right so that its median splits it
+    // by x if axis is 0 (by y otherwise), then arrange both halves
+    private void sort(int left, int right, int axis) {
+        if (right - left <= NODE_SIZE) return;
+        int m = (left + right) >>> 1;
+        select(m, left, right, axis == 0 ? x : y);
+        sort(left, m - 1, 1 - axis);
+        sort(m + 1, right, 1 - axis);
+    }
+
+    // quickselect : put the k-th smallest value of c[left..right] at k,
+    // smaller or equal values before it and greater or equal values after it
+    private void select(int k, int left, int right, double[] c) {
+        while (right > left) {
+            double pivot = c[(left + right) >>> 1];
+            int i = left, j = right;
+            while (i <= j) {
+                while (c[i] < pivot) i++;
+                while (c[j] > pivot) j--;
+                if (i <= j) swap(i++, j--);
+            }
+            if (k <= j) right = j;
+            else if (k >= i) left = i;
+            else return;
+        }
+    }
+
+    private void swap(int i, int j) {
+        double t = x[i];
+        x[i] = x[j];
+        x[j] = t;
+        t = y[i];
+        y[i] = y[j];
+        y[j] = t;
+        int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+
+}
@@ -0,0 +1,288 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.workbench.model.*;
+import org.locationtech.jts.geom.Geometry;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A cache of aggregation results, so that an aggregation run again on
+ * unchanged layers with the same parameters returns immediately.
+ * <p>
+ * Results are keyed by the source and target layers, their modification
+ * stamps and the aggregation parameters. The modification stamp of a layer
+ * is incremented each time features of the layer are added, removed or
+ * modified (including attribute modifications), and the results of a layer
+ * are removed from the cache as soon as it changes or is removed. The
+ * feature collection of each layer and its size are also part of the key,
+ * to detect changes which have not been notified.
+ * </p>
+ * <p>
+ * Only aggregated values are cached (see
+ * {@link AggregationEngine#aggregateValues}), and layers and collections
+ * are weakly referenced, so that the cache does not keep the layers of a
+ * closed task alive (results of collected layers are dropped before each
+ * new result is cached). Aggregated geometries are copied, so that editing
+ * the features of a result layer does not change the cache.
+ * </p>
+ * <p>
+ * The cache is bounded : least recently used results are evicted when it
+ * holds more than MAX_ENTRIES results, or when the estimated size of the
+ * cached values exceeds MAX_BYTES (the most recent result is always kept).
+ * </p>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class ResultCache {
+
+    static final int MAX_ENTRIES = 8;
+    static final long MAX_BYTES = Runtime.getRuntime().maxMemory() / 16;
+
+    /**
+     * Identifies the result of an aggregation of a source layer on a target
+     * layer in a given state.
+     */
+    static final class Key {
+        final WeakReference<Layer> source, target;
+        final WeakReference<FeatureCollection> sourceCollection, targetCollection;
+        final int sourceSize, targetSize;
+        final long sourceStamp, targetStamp;
+        final String parameters;
+        final int hashCode;
+
+        private Key(Layer source, Layer target, long sourceStamp, long targetStamp,
+                    String parameters) {
+            FeatureCollection sourceCollection =
+                source.getFeatureCollectionWrapper().getUltimateWrappee();
+            FeatureCollection targetCollection =
+                target.getFeatureCollectionWrapper().getUltimateWrappee();
+            this.source = new WeakReference<>(source);
+            this.target = new WeakReference<>(target);
+            this.sourceCollection = new WeakReference<>(sourceCollection);
+            this.targetCollection = new WeakReference<>(targetCollection);
+            this.sourceSize = sourceCollection.size();
+            this.targetSize = targetCollection.size();
+            this.sourceStamp = sourceStamp;
+            this.targetStamp = targetStamp;
+            this.parameters = parameters;
+            this.hashCode = Objects.hash(System.identityHashCode(source),
+                System.identityHashCode(target), sourceStamp, targetStamp, parameters);
+        }
+
+        // true if a layer or a collection of the key has been collected
+        boolean isCleared() {
+            return source.get() == null || target.get() == null ||
+                sourceCollection.get() == null || targetCollection.get() == null;
+        }
+
+        boolean refersTo(Layer layer) {
+            return source.get() == layer || target.get() == layer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key)o;
+            return !isCleared() &&
+                source.get() == other.source.get() && target.get() == other.target.get() &&
+                sourceCollection.get() == other.sourceCollection.get() &&
+                targetCollection.get() == other.targetCollection.get() &&
+                sourceSize == other.sourceSize && targetSize == other.targetSize &&
+                sourceStamp == other.sourceStamp && targetStamp == other.targetStamp &&
+                parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Aggregated values of each target (see
+     * {@link AggregationEngine#aggregateValues}), their schema and the
+     * report of the run which computed them.
+     */
+    static final class Result {
+        final Object[][] values;
+        final FeatureSchema schema;
+        final AggregationReport report;
+        // estimated size of values in bytes
+        final long size;
+        // true if values hold aggregated geometries
+        final boolean geometries;
+
+        Result(Object[][] values, FeatureSchema schema, AggregationReport report) {
+            this.values = values;
+            this.schema = schema;
+            this.report = report;
+            long bytes = 16L + 8L * values.length;
+            boolean hasGeometries = false;
+            for (Object[] array : values) {
+                if (array == null) continue;
+                bytes += 16 + 8 * array.length;
+                for (Object value : array) bytes += getSize(value);
+                hasGeometries |= array[0] != null;
+            }
+            this.size = bytes;
+            this.geometries = hasGeometries;
+        }
+
+        // copy of the values holding copies of aggregated geometries (values
+        // are shared if there is no aggregated geometry, as they are not
+        // modified by their users)
+        Result copy() {
+            if (!geometries) return this;
+            Object[][] copies = new Object[values.length][];
+            for (int i = 0 ; i < values.length ; i++) {
+                if (values[i] == null) continue;
+                copies[i] = values[i].clone();
+                if (copies[i][0] != null) copies[i][0] = ((Geometry)copies[i][0]).copy();
+            }
+            return new Result(copies, schema, report);
+        }
+
+        // estimated size of an aggregated value in bytes
+        private static long getSize(Object value) {
+            if (value == null) return 0;
+            if (value instanceof String) return 40 + 2L * ((String)value).length();
+            // coordinate objects and the arrays and objects holding them
+            if (value instanceof Geometry) return 64 + 48L * ((Geometry)value).getNumPoints();
+            return 24;
+        }
+    }
+
+    // access-ordered map : first entry is the least recently used one
+    private final LinkedHashMap<Key,Result> entries =
+        new LinkedHashMap<>(16, 0.75f, true);
+
+    private long byteCount = 0;
+
+    private final Map<Layer,Long> stamps = new WeakHashMap<>();
+
+    // layer managers this cache is listening to
+    private final Set<LayerManager> layerManagers =
+        Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final LayerListener listener = new LayerListener() {
+        public void featuresChanged(FeatureEvent e) {
+            invalidate(e.getLayer());
+        }
+        public void layerChanged(LayerEvent e) {
+            if (e.getType() == LayerEventType.REMOVED && e.getLayerable() instanceof Layer) {
+                invalidate((Layer)e.getLayerable());
+            }
+        }
+        public void categoryChanged(CategoryEvent e) {
+        }
+    };
+
+    /**
+     * Return the key of the aggregation of source on target in their current
+     * state.
+     * @param parameters the aggregation parameters (predicate and its
+     *                   parameters, aggregations, options...)
+     */
+    synchronized Key getKey(Layer source, Layer target, String parameters) {
+        for (Layer layer : new Layer[]{source, target}) {
+            if (layer.getLayerManager() != null && layerManagers.add(layer.getLayerManager())) {
+                layer.getLayerManager().addLayerListener(listener);
+            }
+        }
+        return new Key(source, target,
+            stamps.getOrDefault(source, 0L), stamps.getOrDefault(target, 0L), parameters);
+    }
+
+    /**
+     * Return a copy of the result cached for key, or null.
+     */
+    synchronized Result get(Key key) {
+        Result result = entries.get(key);
+        return result == null ? null : result.copy();
+    }
+
+    /**
+     * Cache a copy of result with key, unless one of the layers of key has
+     * changed since the key was created (the result may be obsolete), or
+     * the estimated size of result exceeds MAX_BYTES.
+     */
+    synchronized void put(Key key, Result result) {
+        if (result.size > MAX_BYTES) return;
+        Layer source = key.source.get();
+        Layer target = key.target.get();
+        if (source == null || target == null ||
+            !key.equals(getKey(source, target, key.parameters))) return;
+        Result copy = result.copy();
+        Result old = entries.put(key, copy);
+        if (old != null) byteCount -= old.size;
+        byteCount += copy.size;
+        evict();
+    }
+
+    /**
+     * Remove the results of layer from the cache.
+     */
+    synchronized void invalidate(Layer layer) {
+        stamps.merge(layer, 1L, Long::sum);
+        removeIf(key -> key.refersTo(layer));
+    }
+
+    /**
+     * Remove all results from the cache.
+     */
+    synchronized void clear() {
+        entries.clear();
+        byteCount = 0;
+    }
+
+    // drop results of collected layers, then least recently used results
+    private void evict() {
+        removeIf(Key::isCleared);
+        Iterator<Result> it = entries.values().iterator();
+        while (entries.size() > 1 &&
+            (entries.size() > MAX_ENTRIES || byteCount > MAX_BYTES)) {
+            byteCount -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private void removeIf(Predicate<Key> predicate) {
+        Iterator<Map.Entry<Key,Result>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key,Result> entry = it.next();
+            if (predicate.test(entry.getKey())) {
+                byteCount -= entry.getValue().size;
+                it.remove();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,419 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.BasicFeature;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import org.locationtech.jts.algorithm.Orientation;
+import org.locationtech.jts.algorithm.PointLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A {@link TiledAggregation.FeatureReader} reading the features of a
+ * shapefile intersecting an envelope, without loading the whole file.
+ * <p>
+ * The first read loads the record offsets of the .shx file, and the
+ * bounding box of each record (read from the record headers in a sequential
+ * scan of the .shp file), in arrays of 40 bytes per record. Each read then
+ * skips the records whose bounding box does not intersect the envelope, and
+ * only seeks to the other records, whose attributes are read from the row of
+ * the .dbf file having the same index. Only these arrays and the features
+ * returned by a read are thus held in memory.
+ * </p>
+ * <p>
+ * Attribute types are derived from dbf field types as OpenJUMP shapefile
+ * reader does (numeric fields without decimals are integers or longs
+ * depending on their length). The charset of the .dbf file is read from the
+ * .cpg file if there is one (ISO-8859-1 otherwise). M values and multipatch
+ * shapes are not supported.
+ * </p>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class ShapefileFeatureReader implements TiledAggregation.FeatureReader {
+
+    // number of .shx entries read at once
+    private static final int INDEX_CHUNK = 8192;
+    // size of the buffer used to scan .shp record headers
+    private static final int SCAN_BUFFER = 1 << 20;
+
+    private final GeometryFactory factory = new GeometryFactory();
+    private final FileChannel shp, shx, dbf;
+    private final int recordCount;
+    private final Envelope extent;
+    // offset and content length (in 16-bit words) of each record, and
+    // bounding box of each record as minx, miny, maxx, maxy (NaN for an
+    // empty shape), loaded by the first read
+    private int[] offsets, lengths;
+    private double[] bounds;
+
+    private final FeatureSchema schema;
+    private final Charset charset;
+    private final int dbfHeaderLength, dbfRecordLength;
+    // type, offset in the dbf record and length of each field
+    private final char[] fieldTypes;
+    private final int[] fieldOffsets, fieldLengths;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd");
+
+    /**
+     * Open the shapefile path (and the .shx and .dbf files having the same
+     * base name).
+     */
+    public ShapefileFeatureReader(String path) throws IOException {
+        String base = path.substring(0, path.length() - 4);
+        shp = FileChannel.open(Paths.get(path));
+        shx = FileChannel.open(Paths.get(base + ".shx"));
+        dbf = FileChannel.open(Paths.get(base + ".dbf"));
+        ByteBuffer header = read(shp, 0, 100, ByteOrder.LITTLE_ENDIAN);
+        extent = new Envelope(header.getDouble(36), header.getDouble(52),
+            header.getDouble(44), header.getDouble(60));
+        recordCount = (int)((shx.size() - 100) / 8);
+        Path cpg = Paths.get(base + ".cpg");
+        charset = Files.exists(cpg) ?
+            Charset.forName(new String(Files.readAllBytes(cpg), StandardCharsets.US_ASCII).trim()) :
+            StandardCharsets.ISO_8859_1;
+
+        ByteBuffer dbfHeader = read(dbf, 0, 32, ByteOrder.LITTLE_ENDIAN);
+        dbfHeaderLength = dbfHeader.getShort(8) & 0xFFFF;
+        dbfRecordLength = dbfHeader.getShort(10) & 0xFFFF;
+        // field descriptors (32 bytes each) end with 0x0D
+        ByteBuffer fields = read(dbf, 32, dbfHeaderLength - 32, ByteOrder.LITTLE_ENDIAN);
+        int fieldCount = 0;
+        while (32 * fieldCount + 32 <= fields.limit() && fields.get(32 * fieldCount) != 0x0D) {
+            fieldCount++;
+        }
+        schema = new FeatureSchema();
+        schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+        fieldTypes = new char[fieldCount];
+        fieldOffsets = new int[fieldCount];
+        fieldLengths = new int[fieldCount];
+        // first byte of a record is the deletion flag
+        int offset = 1;
+        for (int i = 0 ; i < fieldCount ; i++) {
+            byte[] name = new byte[11];
+            fields.position(32 * i);
+            fields.get(name);
+            int length = 0;
+            while (length < name.length && name[length] != 0) length++;
+            fieldTypes[i] = (char)fields.get(32 * i + 11);
+            fieldLengths[i] = fields.get(32 * i + 16) & 0xFF;
+            fieldOffsets[i] = offset;
+            offset += fieldLengths[i];
+            schema.addAttribute(new String(name, 0, length, charset).trim(),
+                getAttributeType(fieldTypes[i], fieldLengths[i], fields.get(32 * i + 17)));
+        }
+    }
+
+    public FeatureSchema getFeatureSchema() {
+        return schema;
+    }
+
+    /**
+     * Return the extent of the shapefile, read from its header.
+     */
+    public Envelope getExtent() {
+        return new Envelope(extent);
+    }
+
+    /**
+     * Return the features whose bounding box intersects envelope, or the
+     * features with an empty geometry if envelope is a null Envelope (see
+     * {@link Envelope#isNull()}), in the order of the file.
+     */
+    @Override
+    public FeatureCollection read(Envelope envelope) throws IOException {
+        if (bounds == null) readIndex();
+        FeatureCollection features = new FeatureDataset(schema);
+        for (int i = 0 ; i < recordCount ; i++) {
+            double minx = bounds[4 * i];
+            if (envelope.isNull() ? !Double.isNaN(minx) :
+                Double.isNaN(minx) ||
+                minx > envelope.getMaxX() || bounds[4 * i + 2] < envelope.getMinX() ||
+                bounds[4 * i + 1] > envelope.getMaxY() || bounds[4 * i + 3] < envelope.getMinY()) {
+                continue;
+            }
+            Feature feature = new BasicFeature(schema);
+            feature.setGeometry(readGeometry(read(shp, 2L * offsets[i] + 8, 2 * lengths[i],
+                ByteOrder.LITTLE_ENDIAN)));
+            readAttributes(i, feature);
+            features.add(feature);
+        }
+        return features;
+    }
+
+    // read the offset, length and bounding box of each record
+    private void readIndex() throws IOException {
+        offsets = new int[recordCount];
+        lengths = new int[recordCount];
+        bounds = new double[4 * recordCount];
+        for (int first = 0 ; first < recordCount ; first += INDEX_CHUNK) {
+            int count = Math.min(INDEX_CHUNK, recordCount - first);
+            ByteBuffer index = read(shx, 100 + 8L * first, 8 * count, ByteOrder.BIG_ENDIAN);
+            for (int i = 0 ; i < count ; i++) {
+                offsets[first + i] = index.getInt(8 * i);
+                lengths[first + i] = index.getInt(8 * i + 4);
+            }
+        }
+        // records are normally stored in the order of the index, so that
+        // their headers are read through a buffer moving forward in the file
+        ByteBuffer buffer = ByteBuffer.allocate(0);
+        long bufferPosition = 0;
+        for (int i = 0 ; i < recordCount ; i++) {
+            // record header (8 bytes), shape type, bounding box and number
+            // of parts (or points)
+            long position = 2L * offsets[i] + 8;
+            int length = Math.min(2 * lengths[i], 40);
+            if (position < bufferPosition || position + length > bufferPosition + buffer.limit()) {
+                bufferPosition = position;
+                buffer = read(shp, position,
+                    (int)Math.min(Math.max(SCAN_BUFFER, length), shp.size() - position),
+                    ByteOrder.LITTLE_ENDIAN);
+            }
+            int start = (int)(position - bufferPosition);
+            ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            header.position(start).limit(start + length);
+            Envelope envelope = getBounds(header.slice().order(ByteOrder.LITTLE_ENDIAN));
+            if (envelope.isNull()) {
+                Arrays.fill(bounds, 4 * i, 4 * i + 4, Double.NaN);
+            } else {
+                bounds[4 * i] = envelope.getMinX();
+                bounds[4 * i + 1] = envelope.getMinY();
+                bounds[4 * i + 2] = envelope.getMaxX();
+                bounds[4 * i + 3] = envelope.getMaxY();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        shp.close();
+        shx.close();
+        dbf.close();
+    }
+
+    // bounding box of a record from its header (null for a null shape or a
+    // shape without points)
+    private static Envelope getBounds(ByteBuffer header) {
+        int type = header.getInt(0);
+        if (type == 0) return new Envelope();
+        if (type % 10 == 1 && type != 31) {
+            return new Envelope(new Coordinate(header.getDouble(4), header.getDouble(12)));
+        }
+        if (header.limit() < 40 || header.getInt(36) == 0) return new Envelope();
+        return new Envelope(header.getDouble(4), header.getDouble(20),
+            header.getDouble(12), header.getDouble(28));
+    }
+
+    private Geometry readGeometry(ByteBuffer content) throws IOException {
+        int type = content.getInt(0);
+        if (type == 0) return factory.createGeometryCollection();
+        // Z shapes (1x) have a z array after xy coordinates
+        boolean z = type / 10 == 1;
+        if (type == 31) throw new IOException("Unsupported shape type : multipatch");
+        switch (type % 10) {
+            case 1 :
+                return factory.createPoint(new Coordinate(content.getDouble(4),
+                    content.getDouble(12), z ? content.getDouble(20) : Double.NaN));
+            case 8 : {
+                int n = content.getInt(36);
+                return factory.createMultiPointFromCoords(
+                    getCoordinates(content, 40, z ? 40 + 16 * n + 16 : -1, 0, n));
+            }
+            case 3 :
+            case 5 : {
+                int parts = content.getInt(36);
+                int n = content.getInt(40);
+                int xy = 44 + 4 * parts;
+                int zs = z ? xy + 16 * n + 16 : -1;
+                List<Coordinate[]> lines = new ArrayList<>();
+                for (int i = 0 ; i < parts ; i++) {
+                    int to = i + 1 < parts ? content.getInt(44 + 4 * (i + 1)) : n;
+                    lines.add(getCoordinates(content, xy, zs, content.getInt(44 + 4 * i), to));
+                }
+                return type % 10 == 3 ? createLines(lines) : createPolygons(lines);
+            }
+            default :
+                throw new IOException("Unsupported shape type : " + type);
+        }
+    }
+
+    // coordinates from to to (excluded), xy and zs being the offsets of xy
+    // coordinates and of z values (-1 if there are no z values)
+    private static Coordinate[] getCoordinates(ByteBuffer content, int xy, int zs, int from, int to) {
+        Coordinate[] coordinates = new Coordinate[to - from];
+        for (int i = from ; i < to ; i++) {
+            coordinates[i - from] = new Coordinate(
+                content.getDouble(xy + 16 * i), content.getDouble(xy + 16 * i + 8),
+                zs < 0 ? Double.NaN : content.getDouble(zs + 8 * i));
+        }
+        return coordinates;
+    }
+
+    private Geometry createLines(List<Coordinate[]> lines) {
+        List<Geometry> geometries = new ArrayList<>();
+        for (Coordinate[] line : lines) {
+            if (line.length > 1) geometries.add(factory.createLineString(line));
+        }
+        return factory.buildGeometry(geometries);
+    }
+
+    // clockwise rings are shells, counter-clockwise rings are holes of the
+    // shell containing them (or shells if no shell contains them)
+    private Geometry createPolygons(List<Coordinate[]> rings) {
+        List<LinearRing> shells = new ArrayList<>();
+        List<LinearRing> holes = new ArrayList<>();
+        for (Coordinate[] ring : rings) {
+            if (ring.length == 0) continue;
+            if (!ring[0].equals2D(ring[ring.length - 1])) {
+                ring = Arrays.copyOf(ring, ring.length + 1);
+                ring[ring.length - 1] = ring[0].copy();
+            }
+            if (ring.length < 4) continue;
+            if (Orientation.isCCW(ring)) holes.add(factory.createLinearRing(ring));
+            else shells.add(factory.createLinearRing(ring));
+        }
+        List<List<LinearRing>> shellHoles = new ArrayList<>();
+        for (int i = 0 ; i < shells.size() ; i++) shellHoles.add(new ArrayList<>());
+        for (LinearRing hole : holes) {
+            int shell = getShell(shells, hole);
+            if (shell < 0) {
+                shells.add(hole);
+                shellHoles.add(new ArrayList<>());
+            } else {
+                shellHoles.get(shell).add(hole);
+            }
+        }
+        List<Geometry> polygons = new ArrayList<>();
+        for (int i = 0 ; i < shells.size() ; i++) {
+            polygons.add(factory.createPolygon(shells.get(i),
+                shellHoles.get(i).toArray(new LinearRing[0])));
+        }
+        return factory.buildGeometry(polygons);
+    }
+
+    // index of the first shell containing hole, or -1
+    private static int getShell(List<LinearRing> shells, LinearRing hole) {
+        Envelope envelope = hole.getEnvelopeInternal();
+        Coordinate[] coordinates = hole.getCoordinates();
+        for (int i = 0 ; i < shells.size() ; i++) {
+            LinearRing shell = shells.get(i);
+            if (!shell.getEnvelopeInternal().covers(envelope)) continue;
+            Coordinate[] ring = shell.getCoordinates();
+            for (Coordinate c : coordinates) {
+                // a vertex of the hole inside the shell (or on its boundary)
+                if (PointLocation.isInRing(c, ring)) return i;
+            }
+        }
+        return -1;
+    }
+
+    private void readAttributes(int row, Feature feature) throws IOException {
+        ByteBuffer record = read(dbf, dbfHeaderLength + (long)dbfRecordLength * row,
+            dbfRecordLength, ByteOrder.LITTLE_ENDIAN);
+        byte[] bytes = record.array();
+        for (int i = 0 ; i < fieldTypes.length ; i++) {
+            String value = new String(bytes, fieldOffsets[i], fieldLengths[i], charset).trim();
+            feature.setAttribute(i + 1, getValue(value, fieldTypes[i], schema.getAttributeType(i + 1)));
+        }
+    }
+
+    private static AttributeType getAttributeType(char fieldType, int length, int decimals) {
+        switch (fieldType) {
+            case 'N' :
+            case 'F' :
+                if (decimals > 0) return AttributeType.DOUBLE;
+                if (length < 10) return AttributeType.INTEGER;
+                return length < 19 ? AttributeType.LONG : AttributeType.DOUBLE;
+            case 'D' :
+                return AttributeType.DATE;
+            case 'L' :
+                return AttributeType.BOOLEAN;
+            default :
+                return AttributeType.STRING;
+        }
+    }
+
+    // value of a dbf field (null for empty or invalid numbers and dates)
+    private Object getValue(String value, char fieldType, AttributeType type) {
+        try {
+            switch (fieldType) {
+                case 'N' :
+                case 'F' :
+                    if (value.isEmpty() || value.charAt(0) == '*') return null;
+                    if (type == AttributeType.INTEGER) return new BigDecimal(value).intValue();
+                    if (type == AttributeType.LONG) return new BigDecimal(value).longValue();
+                    return Double.parseDouble(value);
+                case 'D' :
+                    return value.isEmpty() ? null : dateFormat.parse(value);
+                case 'L' :
+                    if ("YyTt".indexOf(value.isEmpty() ? ' ' : value.charAt(0)) >= 0) return true;
+                    if ("NnFf".indexOf(value.isEmpty() ? ' ' : value.charAt(0)) >= 0) return false;
+                    return null;
+                default :
+                    return value;
+            }
+        } catch (NumberFormatException | ParseException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length,
+                                   ByteOrder order) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+        }
+        buffer.flip();
+        return buffer.order(order);
+    }
+
+}
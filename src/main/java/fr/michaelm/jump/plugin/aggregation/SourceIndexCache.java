@@ -0,0 +1,210 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.workbench.model.*;
+
+import java.util.*;
+
+/**
+ * A cache of spatial indexes built on layers, so that several aggregations
+ * using the same layer do not rebuild its index.
+ * <p>
+ * An index is invalidated as soon as features are added, removed or have
+ * their geometry modified in its layer, when the layer is removed, or when
+ * its feature collection is replaced. Attribute modifications do not
+ * invalidate the index, as indexed features are the layer features.
+ * </p>
+ * <p>
+ * The cache is bounded : least recently used indexes are evicted when it
+ * holds more than MAX_ENTRIES indexes, or indexes of more than MAX_FEATURES
+ * features (the most recent index is always kept).
+ * </p>
+ * <p>
+ * Layers are weakly referenced, so that the cache does not keep the layers
+ * of a closed task alive, and indexes of layers which are no longer in
+ * their layer manager (closed task, layer removed without notification)
+ * are dropped before each new index is cached.
+ * </p>
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class SourceIndexCache {
+
+    static final int MAX_ENTRIES = 4;
+    static final long MAX_FEATURES = 10_000_000L;
+
+    private static class Entry {
+        // the collection which has been indexed and its size, used to detect
+        // changes which have not been notified
+        final FeatureCollection collection;
+        final int size;
+        final FeatureIndex index;
+        // statistics of the join planner, computed on first use
+        JoinPlanner.Statistics statistics;
+        // value of uses when the entry was last used
+        long lastUse;
+        Entry(FeatureCollection collection, FeatureIndex index) {
+            this.collection = collection;
+            this.size = collection.size();
+            this.index = index;
+        }
+    }
+
+    // entries do not reference their layer, which can be garbage collected
+    private final Map<Layer,Entry> entries = new WeakHashMap<>();
+
+    // incremented each time an index is used (orders entries by last use)
+    private long uses = 0;
+
+    // incremented each time an index is invalidated
+    private long invalidations = 0;
+
+    // layer managers this cache is listening to (the listener only refers to
+    // the cache, so that it keeps neither layers nor indexes alive)
+    private final Set<LayerManager> layerManagers =
+        Collections.newSetFromMap(new WeakHashMap<>());
+
+    private final LayerListener listener = new LayerListener() {
+        public void featuresChanged(FeatureEvent e) {
+            if (e.getType() != FeatureEventType.ATTRIBUTES_MODIFIED) {
+                invalidate(e.getLayer());
+            }
+        }
+        public void layerChanged(LayerEvent e) {
+            if (e.getType() == LayerEventType.REMOVED && e.getLayerable() instanceof Layer) {
+                invalidate((Layer)e.getLayerable());
+            }
+        }
+        public void categoryChanged(CategoryEvent e) {
+        }
+    };
+
+    /**
+     * Return a spatial index of layer features, from the cache if the layer
+     * has not changed since it was indexed, or a new one.
+     * The returned index is built and can be queried by several threads.
+     */
+    FeatureIndex getIndex(Layer layer) {
+        FeatureCollection collection = layer.getFeatureCollectionWrapper().getUltimateWrappee();
+        long generation;
+        synchronized (this) {
+            Entry entry = entries.get(layer);
+            if (entry != null) {
+                if (entry.collection == collection && entry.size == collection.size()) {
+                    entry.lastUse = ++uses;
+                    return entry.index;
+                }
+                invalidate(layer);
+            }
+            // listen to changes before indexing
+            if (layer.getLayerManager() != null && layerManagers.add(layer.getLayerManager())) {
+                layer.getLayerManager().addLayerListener(listener);
+            }
+            generation = invalidations;
+        }
+        // the index is built without holding the lock, so that change events
+        // fired by the GUI are not blocked
+        FeatureIndex index = new FeatureIndex(layer.getFeatureCollectionWrapper());
+        synchronized (this) {
+            // an index built while a layer was modified may be obsolete :
+            // use it for the current run, but do not cache it
+            if (generation == invalidations) {
+                Entry entry = new Entry(collection, index);
+                entry.lastUse = ++uses;
+                entries.put(layer, entry);
+                evict(layer);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Return the join planner statistics of layer, cached with its index if
+     * the cache holds an up to date index of layer, or new ones.
+     */
+    JoinPlanner.Statistics getStatistics(Layer layer) {
+        Entry entry;
+        synchronized (this) {
+            entry = isCached(layer) ? entries.get(layer) : null;
+            if (entry != null && entry.statistics != null) return entry.statistics;
+        }
+        JoinPlanner.Statistics statistics =
+            new JoinPlanner.Statistics(layer.getFeatureCollectionWrapper());
+        synchronized (this) {
+            // the entry is only updated if it has not been invalidated meanwhile
+            if (entry != null && entries.get(layer) == entry && isCached(layer)) {
+                entry.statistics = statistics;
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * Return true if the cache holds an up to date index of layer.
+     */
+    synchronized boolean isCached(Layer layer) {
+        FeatureCollection collection = layer.getFeatureCollectionWrapper().getUltimateWrappee();
+        Entry entry = entries.get(layer);
+        return entry != null && entry.collection == collection &&
+            entry.size == collection.size();
+    }
+
+    /**
+     * Remove the index of layer from the cache.
+     */
+    synchronized void invalidate(Layer layer) {
+        invalidations++;
+        entries.remove(layer);
+    }
+
+    /**
+     * Remove all indexes from the cache.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    // drop the indexes of layers which are no longer in their layer manager,
+    // then the least recently used indexes while the cache is too large
+    // (the index of current, which has just been cached, is kept)
+    private void evict(Layer current) {
+        entries.keySet().removeIf(layer -> layer != current &&
+            (layer.getLayerManager() == null || layer.getLayerManager().indexOf(layer) < 0));
+        long featureCount = 0;
+        for (Entry entry : entries.values()) featureCount += entry.size;
+        while (entries.size() > 1 &&
+            (entries.size() > MAX_ENTRIES || featureCount > MAX_FEATURES)) {
+            Map.Entry<Layer,Entry> lru = null;
+            for (Map.Entry<Layer,Entry> entry : entries.entrySet()) {
+                if (lru == null || entry.getValue().lastUse < lru.getValue().lastUse) lru = entry;
+            }
+            featureCount -= lru.getValue().size;
+            entries.remove(lru.getKey());
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * A plane-sweep index of feature envelopes, sorted by minX into primitive
+ * arrays. Features are identified by their position in the collection at
+ * indexing time.
+ * A query scans the slice of envelopes whose minX lies between
+ * query.minX - maxWidth and query.maxX, maxWidth being the width of the widest
+ * indexed envelope. This is efficient for points and small envelopes, and
+ * uses much less memory than an R-tree. Querying envelopes in ascending minX
+ * order (see {@link #sortByMinX(List)}) sweeps the arrays from left to right.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+class SweepIndex implements CandidateIndex {
+
+    private final Feature[] features;
+    // envelopes sorted by minX, and the id of the feature of each envelope
+    private final double[] minX, maxX, minY, maxY;
+    private final int[] ids;
+    private double maxWidth;
+
+    SweepIndex(FeatureCollection collection) {
+        List<Feature> list = collection.getFeatures();
+        int n = list.size();
+        features = list.toArray(new Feature[0]);
+        ids = sortByMinX(list);
+        minX = new double[n];
+        maxX = new double[n];
+        minY = new double[n];
+        maxY = new double[n];
+        for (int i = 0 ; i < n ; i++) {
+            Envelope env = features[ids[i]].getGeometry().getEnvelopeInternal();
+            if (env.isNull()) {
+                // empty geometries are sorted last and never returned
+                minX[i] = minY[i] = Double.POSITIVE_INFINITY;
+                maxX[i] = maxY[i] = Double.NEGATIVE_INFINITY;
+                continue;
+            }
+            minX[i] = env.getMinX();
+            maxX[i] = env.getMaxX();
+            minY[i] = env.getMinY();
+            maxY[i] = env.getMaxY();
+            maxWidth = Math.max(maxWidth, maxX[i] - minX[i]);
+        }
+    }
+
+    @Override
+    public int size() { return features.length; }
+
+    @Override
+    public Feature getFeature(int id) { return features[id]; }
+
+    @Override
+    public void query(Envelope envelope, IntConsumer visitor) {
+        if (envelope.isNull()) return;
+        double qMinX = envelope.getMinX();
+        double qMaxX = envelope.getMaxX();
+        double qMinY = envelope.getMinY();
+        double qMaxY = envelope.getMaxY();
+        for (int i = lowerBound(qMinX - maxWidth) ; i < minX.length && minX[i] <= qMaxX ; i++) {
+            if (maxX[i] >= qMinX && minY[i] <= qMaxY && maxY[i] >= qMinY) {
+                visitor.accept(ids[i]);
+            }
+        }
+    }
+
+    // index of the first envelope whose minX is greater or equal to x
+    private int lowerBound(double x) {
+        int lo = 0, hi = minX.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (minX[mid] < x) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Return the positions of features sorted by ascending envelope minX.
+     * Features with an empty geometry come last.
+     */
+    static int[] sortByMinX(List<Feature> features) {
+        int n = features.size();
+        double[] keys = new double[n];
+        int[] order = new int[n];
+        for (int i = 0 ; i < n ; i++) {
+            Envelope env = features.get(i).getGeometry().getEnvelopeInternal();
+            keys[i] = env.isNull() ? Double.POSITIVE_INFINITY : env.getMinX();
+            order[i] = i;
+        }
+        sort(keys, order, 0, n - 1);
+        return order;
+    }
+
+    // quicksort of keys[lo..hi], applying the same permutation to values
+    private static void sort(double[] keys, int[] values, int lo, int hi) {
+        while (hi - lo > 16) {
+            // median of three as pivot
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid] < keys[lo]) swap(keys, values, mid, lo);
+            if (keys[hi] < keys[lo]) swap(keys, values, hi, lo);
+            if (keys[hi] < keys[mid]) swap(keys, values, hi, mid);
+            double pivot = keys[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (keys[i] < pivot) i++;
+                while (keys[j] > pivot) j--;
+                if (i <= j) swap(keys, values, i++, j--);
+            }
+            // recurse on the smaller part to bound the stack depth
+            if (j - lo < hi - i) {
+                sort(keys, values, lo, j);
+                lo = i;
+            } else {
+                sort(keys, values, i, hi);
+                hi = j;
+            }
+        }
+        // insertion sort for small ranges
+        for (int i = lo + 1 ; i <= hi ; i++) {
+            double key = keys[i];
+            int value = values[i];
+            int j = i - 1;
+            while (j >= lo && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+    }
+
+    private static void swap(double[] keys, int[] values, int i, int j) {
+        double key = keys[i];
+        keys[i] = keys[j];
+        keys[j] = key;
+        int value = values[i];
+        values[i] = values[j];
+        values[j] = value;
+    }
+
+}
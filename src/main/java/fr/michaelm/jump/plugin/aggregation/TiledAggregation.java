@@ -0,0 +1,199 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.task.TaskMonitor;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Tiled execution of an {@link AggregationEngine}, for layers which do not
+ * fit in the heap.
+ * <p>
+ * The extent is partitioned into a grid of tiles. Each target feature is
+ * owned by the tile containing the centre of its envelope (targets outside
+ * the extent are owned by the nearest border tile, and targets with an empty
+ * geometry by the first tile), so that each target is aggregated exactly
+ * once. For each tile, targets intersecting the tile are
+ * read, those owned by the tile are kept, sources intersecting the (expanded)
+ * envelope of the owned targets are read, and the aggregated features are
+ * handed to the {@link ResultWriter} before the next tile is read.
+ * Only the features of one tile, their index and their results are thus
+ * held in memory at the same time, provided that the {@link FeatureReader}s
+ * can read an envelope without loading the whole layer (see
+ * {@link ShapefileFeatureReader}).
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class TiledAggregation {
+
+    /**
+     * Reads the features of a layer intersecting an envelope. Readers holding
+     * open files release them in close.
+     */
+    public interface FeatureReader extends AutoCloseable {
+        /**
+         * Return the features intersecting envelope, or the features with an
+         * empty geometry if envelope is a null Envelope (see
+         * {@link Envelope#isNull()}).
+         */
+        FeatureCollection read(Envelope envelope) throws Exception;
+
+        @Override
+        default void close() throws Exception {
+        }
+    }
+
+    /**
+     * Receives the aggregated features of a tile.
+     */
+    public interface ResultWriter {
+        void write(int column, int row, FeatureCollection result) throws Exception;
+    }
+
+    private final AggregationEngine engine;
+    private final Envelope extent;
+    private final int columns;
+    private final int rows;
+    private AggregationReport report;
+
+    /**
+     * @param engine the engine used to aggregate each tile
+     * @param extent the extent to partition (generally the target extent)
+     * @param columns number of columns of the grid
+     * @param rows number of rows of the grid
+     * @throws IllegalArgumentException if engine has a table output without
+     * target id attribute (positions of targets in a tile are not their
+     * record index)
+     */
+    public TiledAggregation(AggregationEngine engine, Envelope extent, int columns, int rows) {
+        if (extent.isNull()) throw new IllegalArgumentException("Empty extent");
+        if (engine.isTableOutput() && engine.getTargetIdAttribute() == null) {
+            throw new IllegalArgumentException("A tiled table output needs a target id attribute");
+        }
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("Invalid grid : " + columns + "x" + rows);
+        }
+        this.engine = engine;
+        this.extent = new Envelope(extent);
+        this.columns = columns;
+        this.rows = rows;
+    }
+
+    /**
+     * Aggregate sources on targets tile by tile.
+     * @return false if the task has been cancelled
+     */
+    public boolean run(FeatureReader sources, FeatureReader targets,
+                       ResultWriter writer, TaskMonitor monitor) throws Exception {
+        long start = System.nanoTime();
+        report = new AggregationReport();
+        long sourceCount = 0, targetCount = 0, resultCount = 0;
+        for (int row = 0 ; row < rows ; row++) {
+            for (int column = 0 ; column < columns ; column++) {
+                if (monitor.isCancelRequested()) return false;
+                monitor.report(row * columns + column, columns * rows, "tiles");
+                FeatureCollection tileTargets = targets.read(getTileEnvelope(column, row));
+                FeatureCollection owned = new FeatureDataset(tileTargets.getFeatureSchema());
+                Envelope queryEnvelope = new Envelope();
+                for (Feature target : tileTargets.getFeatures()) {
+                    Envelope env = target.getGeometry().getEnvelopeInternal();
+                    if (env.isNull()) continue;
+                    if (getColumn(env.centre().x) == column && getRow(env.centre().y) == row) {
+                        owned.add(target);
+                        queryEnvelope.expandToInclude(env);
+                    }
+                }
+                // targets with an empty geometry, which do not relate to any
+                // source, are aggregated with the first tile
+                if (column == 0 && row == 0) {
+                    for (Feature target : targets.read(new Envelope()).getFeatures()) {
+                        if (target.getGeometry().getEnvelopeInternal().isNull()) owned.add(target);
+                    }
+                }
+                tileTargets = null;
+                if (owned.isEmpty()) continue;
+                // (a null envelope only reads sources with an empty geometry)
+                queryEnvelope.expandBy(engine.getQueryDistance());
+                FeatureCollection tileSources = sources.read(queryEnvelope);
+                FeatureCollection result = engine.aggregate(tileSources, owned, monitor);
+                if (result == null) return false;
+                sourceCount += tileSources.size();
+                targetCount += owned.size();
+                resultCount += result.size();
+                report.add(engine.getReport());
+                writer.write(column, row, result);
+            }
+        }
+        report.setProperty("tiles", columns + "x" + rows);
+        report.setProperty("sources", sourceCount);
+        report.setProperty("targets", targetCount);
+        report.setProperty("results", resultCount);
+        report.setTotalTime(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Return the report of the last run, summing the reports of all tiles
+     * (a source read by several tiles is counted once per tile), or null if
+     * no run has been completed.
+     */
+    public AggregationReport getReport() {
+        return report;
+    }
+
+    // envelope of tile (column, row), border tiles extending to infinity,
+    // slightly expanded so that targets centred on a tile boundary are read
+    // by the tile owning them despite rounding errors
+    private Envelope getTileEnvelope(int column, int row) {
+        double w = extent.getWidth() / columns;
+        double h = extent.getHeight() / rows;
+        Envelope envelope = new Envelope(
+            column == 0 ? -Double.MAX_VALUE : extent.getMinX() + column * w,
+            column == columns - 1 ? Double.MAX_VALUE : extent.getMinX() + (column + 1) * w,
+            row == 0 ? -Double.MAX_VALUE : extent.getMinY() + row * h,
+            row == rows - 1 ? Double.MAX_VALUE : extent.getMinY() + (row + 1) * h);
+        envelope.expandBy(Math.max(w, h) * 1e-9);
+        return envelope;
+    }
+
+    private int getColumn(double x) {
+        return index(x, extent.getMinX(), extent.getWidth(), columns);
+    }
+
+    private int getRow(double y) {
+        return index(y, extent.getMinY(), extent.getHeight(), rows);
+    }
+
+    private static int index(double value, double min, double size, int count) {
+        if (size <= 0) return 0;
+        int i = (int)Math.floor((value - min) / size * count);
+        return Math.max(0, Math.min(count - 1, i));
+    }
+
+}
@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.Date;
@@ -50,63 +49,73 @@ public class Average extends AggregationFunction {
 
 
     public Object aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        AttributeType type = schema.getAttributeType(index);
-        if (type == AttributeType.INTEGER) return averageInteger(list, index);
-        else if (type == AttributeType.DOUBLE) return averageDouble(list, index);
-        else if (type == AttributeType.DATE) return averageDate(list, index);
-        else return null;
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
     }
 
 
-    private Double averageInteger(List<Feature> list, int index) {
-        int n = 0;
-        double sum = 0.0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                sum += f.getInteger(index);
-                n++;
-            }
-        }
-        return sum / n;
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new AverageAccumulator(inputType);
+    }
+
+
+    public AttributeType getReturnAttributeType(AttributeType inputType) {
+        if (inputType == AttributeType.GEOMETRY) return null;
+        else if (inputType == AttributeType.STRING) return null;
+        else if (inputType == AttributeType.INTEGER ||
+                 inputType == AttributeType.DOUBLE) return AttributeType.DOUBLE;
+        else if (inputType == AttributeType.DATE) return AttributeType.DATE;
+        else return null;
     }
 
 
-    private Double averageDouble(List<Feature> list, int index) {
-        int n = 0;
-        double sum = 0.0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                sum += f.getDouble(index);
+    private static class AverageAccumulator extends Accumulator {
+
+        private final AttributeType type;
+        private int n = 0;
+        private double sum = 0.0;
+        private long timeSum = 0;
+
+        AverageAccumulator(AttributeType type) {
+            this.type = type;
+        }
+
+        public void accumulate(Object value) {
+            if (value == null) return;
+            if (type == AttributeType.INTEGER || type == AttributeType.DOUBLE) {
+                sum += ((Number)value).doubleValue();
+                n++;
+            }
+            else if (type == AttributeType.DATE) {
+                timeSum += ((Date)value).getTime();
                 n++;
             }
         }
-        return sum / n;
-    }
 
+        public void accumulate(int value) {
+            accumulate((double)value);
+        }
 
-    private Date averageDate(List<Feature> list, int index) {
-        long l = 0;
-        int n = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                l += ((Date)f.getAttribute(index)).getTime();
+        public void accumulate(double value) {
+            if (type == AttributeType.INTEGER || type == AttributeType.DOUBLE) {
+                sum += value;
                 n++;
             }
+            else accumulate((Object)value);
         }
-        return new Date(l/n);
-    }
 
+        public void merge(Accumulator other) {
+            AverageAccumulator average = (AverageAccumulator)other;
+            n += average.n;
+            sum += average.sum;
+            timeSum += average.timeSum;
+        }
 
-    public AttributeType getReturnAttributeType(AttributeType inputType) {
-        if (inputType == AttributeType.GEOMETRY) return null;
-        else if (inputType == AttributeType.STRING) return null;
-        else if (inputType == AttributeType.INTEGER ||
-                 inputType == AttributeType.DOUBLE) return AttributeType.DOUBLE;
-        else if (inputType == AttributeType.DATE) return AttributeType.DATE;
-        else return null;
+        public Object finish() {
+            if (n == 0) return null;
+            if (type == AttributeType.DATE) return new Date(timeSum/n);
+            else return sum / n;
+        }
     }
 
 }
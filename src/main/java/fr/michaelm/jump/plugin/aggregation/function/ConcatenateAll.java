@@ -29,7 +29,6 @@ import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 import java.util.*;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 
 /**
  * An aggregation function to concatenate Strings.
@@ -46,19 +45,12 @@ public class ConcatenateAll extends AggregationFunction {
     }
 
     public Object aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        StringBuilder sb = new StringBuilder();
-        String sep = param==null?"|":param.toString();
-        int count = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                if (0<count++) sb.append(sep).append(f.getAttribute(index).toString());
-                else sb.append(f.getString(index));
-            }
-        }
-        return sb.toString();
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
+    }
+
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new ConcatenateAccumulator(param==null?"|":param.toString());
     }
 
     public AttributeType getReturnAttributeType(AttributeType inputType) {
@@ -66,4 +58,37 @@ public class ConcatenateAll extends AggregationFunction {
         else return inputType;
     }
 
+
+    private static class ConcatenateAccumulator extends Accumulator {
+
+        private final String sep;
+        private int n = 0;
+        private int count = 0;
+        private final StringBuilder sb = new StringBuilder();
+
+        ConcatenateAccumulator(String sep) {
+            this.sep = sep;
+        }
+
+        public void accumulate(Object value) {
+            n++;
+            if (value == null) return;
+            if (0<count++) sb.append(sep);
+            sb.append(value.toString());
+        }
+
+        public void merge(Accumulator other) {
+            ConcatenateAccumulator concat = (ConcatenateAccumulator)other;
+            n += concat.n;
+            if (concat.count == 0) return;
+            if (count > 0) sb.append(sep);
+            sb.append(concat.sb);
+            count += concat.count;
+        }
+
+        public Object finish() {
+            return n == 0 ? null : sb.toString();
+        }
+    }
+
 }
@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.List;
@@ -49,23 +48,12 @@ public class ConcatenateDistinct extends AggregationFunction {
     }
 
     public Object aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        Set<Object> set = new TreeSet<>();
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                set.add(f.getAttribute(index));
-            }
-        }
-        StringBuilder sb = new StringBuilder();
-        String sep = param==null?"|":param.toString();
-        int count = 0;
-        for (Object o : set) {
-            if (0<count++) sb.append(sep).append(o.toString());
-            else sb.append(o.toString());
-        }
-        return sb.toString();
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
+    }
+
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new DistinctAccumulator(param==null?"|":param.toString());
     }
 
     public AttributeType getReturnAttributeType(AttributeType inputType) {
@@ -73,4 +61,38 @@ public class ConcatenateDistinct extends AggregationFunction {
         else return inputType;
     }
 
+
+    private static class DistinctAccumulator extends Accumulator {
+
+        private final String sep;
+        private int n = 0;
+        private final Set<Object> set = new TreeSet<>();
+
+        DistinctAccumulator(String sep) {
+            this.sep = sep;
+        }
+
+        public void accumulate(Object value) {
+            n++;
+            if (value != null) set.add(value);
+        }
+
+        public void merge(Accumulator other) {
+            DistinctAccumulator distinct = (DistinctAccumulator)other;
+            n += distinct.n;
+            set.addAll(distinct.set);
+        }
+
+        public Object finish() {
+            if (n == 0) return null;
+            StringBuilder sb = new StringBuilder();
+            int count = 0;
+            for (Object o : set) {
+                if (0<count++) sb.append(sep).append(o.toString());
+                else sb.append(o.toString());
+            }
+            return sb.toString();
+        }
+    }
+
 }
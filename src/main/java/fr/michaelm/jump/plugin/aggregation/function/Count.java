@@ -47,17 +47,46 @@ public class Count extends AggregationFunction {
 
     public Object aggregate(List<Feature> list, String sourceAttr,
                             boolean ignore_null, Object param) {
-        if (ignore_null) {
-            int nnc = 0;
-            for (Feature f : list) {
-                if (f.getAttribute(sourceAttr) != null) nnc++;
-            }
-            return nnc;
-        } else return list.size();
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
+    }
+
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new CountAccumulator(ignore_null);
     }
 
     public AttributeType getReturnAttributeType(AttributeType inputType) {
         return AttributeType.INTEGER;
     }
 
+    private static class CountAccumulator extends Accumulator {
+
+        private final boolean ignore_null;
+        private int count = 0;
+
+        CountAccumulator(boolean ignore_null) {
+            this.ignore_null = ignore_null;
+        }
+
+        public void accumulate(Object value) {
+            if (!ignore_null || value != null) count++;
+        }
+
+        public void accumulate(int value) {
+            count++;
+        }
+
+        public void accumulate(double value) {
+            count++;
+        }
+
+        public void merge(Accumulator other) {
+            count += ((CountAccumulator)other).count;
+        }
+
+        public Object finish() {
+            return count;
+        }
+    }
+
 }
@@ -46,15 +46,41 @@ public class CountNonNull extends AggregationFunction {
     }
 
     public Integer aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        int nnc = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(sourceAttr) != null) nnc++;
-        }
-        return nnc;
+        return (Integer)aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
+    }
+
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new CountNonNullAccumulator();
     }
 
     public AttributeType getReturnAttributeType(AttributeType inputType) {
         return AttributeType.INTEGER;
     }
 
+    private static class CountNonNullAccumulator extends Accumulator {
+
+        private int count = 0;
+
+        public void accumulate(Object value) {
+            if (value != null) count++;
+        }
+
+        public void accumulate(int value) {
+            count++;
+        }
+
+        public void accumulate(double value) {
+            count++;
+        }
+
+        public void merge(Accumulator other) {
+            count += ((CountNonNullAccumulator)other).count;
+        }
+
+        public Object finish() {
+            return count;
+        }
+    }
+
 }
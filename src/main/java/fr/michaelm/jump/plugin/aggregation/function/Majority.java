@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.*;
@@ -51,29 +50,12 @@ public class Majority extends AggregationFunction {
                             String sourceAttr,
                             boolean ignore_null,
                             Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
+    }
 
-        // count features for each attribute value
-        HashMap<Object,Integer> map = new HashMap<>();
-        for (Feature f : list) {
-            Object value = f.getAttribute(index);
-            if (ignore_null) {
-                if (value==null) continue;
-                String sval = value.toString().trim();
-                if (sval.length()==0 || sval.equals("0") || sval.equals("0.0")) continue;
-            }
-            if (!map.containsKey(value)) map.put(value, 1);
-            else map.put(value, map.get(value) + 1);
-        }
-        // find the min occurrence 
-        Integer max = Collections.max(map.values());
-        // find the first attribute value having min occurrence
-        for (Map.Entry<Object,Integer> entry : map.entrySet()) {
-            if (entry.getValue().equals(max)) return entry.getKey();
-        }
-        return null;
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new OccurrenceAccumulator(ignore_null, true);
     }
 
     public AttributeType getReturnAttributeType(AttributeType inputType) {
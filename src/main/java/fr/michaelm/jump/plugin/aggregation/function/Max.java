@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.Date;
@@ -49,60 +48,67 @@ public class Max extends AggregationFunction {
     }
 
     public Object aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        AttributeType type = schema.getAttributeType(index);
-        if (type == AttributeType.INTEGER) return maxInteger(list, index);
-        else if (type == AttributeType.DOUBLE) return maxDouble(list, index);
-        else if (type == AttributeType.DATE) return maxDate(list, index);
-        else if (type == AttributeType.STRING) return maxString(list, index);
-        else return null;
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
     }
 
 
-    private Integer maxInteger(List<Feature> list, int index) {
-        int max = Integer.MIN_VALUE;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null && f.getInteger(index)>max) max = f.getInteger(index);
-        }
-        return max==Integer.MIN_VALUE?null: max;
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new MaxAccumulator(inputType);
     }
 
 
-    private Double maxDouble(List<Feature> list, int index) {
-        double max = Double.MIN_VALUE;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null && f.getDouble(index)>max) max = f.getDouble(index);
-        }
-        return max==Double.MIN_VALUE?null: max;
+    public AttributeType getReturnAttributeType(AttributeType inputType) {
+        if (inputType == AttributeType.GEOMETRY) return null;
+        else return inputType;
     }
 
 
-    private Date maxDate(List<Feature> list, int index) {
-        long max = Long.MIN_VALUE;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null && ((Date)f.getAttribute(index)).getTime()>max) max = ((Date)f.getAttribute(index)).getTime();
+    private static class MaxAccumulator extends Accumulator {
+
+        private final AttributeType type;
+        private Object max = null;
+
+        MaxAccumulator(AttributeType type) {
+            this.type = type;
         }
-        return max==Long.MIN_VALUE?null:new Date(max);
-    }
 
+        public void accumulate(Object value) {
+            if (value == null) return;
+            if (max == null || compare(value, max) > 0) max = value;
+        }
 
-    private String maxString(List<Feature> list, int index) {
-        String max = null;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                if (max==null) max = f.getString(index);
-                else if (f.getString(index).compareToIgnoreCase(max)>0) max = f.getString(index);
-            }
+        public void accumulate(int value) {
+            accumulate((double)value);
         }
-        return max;
-    }
 
+        public void accumulate(double value) {
+            // only a new maximum is boxed
+            if (max == null || Double.compare(value, ((Number)max).doubleValue()) > 0) max = value;
+        }
 
-    public AttributeType getReturnAttributeType(AttributeType inputType) {
-        if (inputType == AttributeType.GEOMETRY) return null;
-        else return inputType;
+        public void merge(Accumulator other) {
+            accumulate(((MaxAccumulator)other).max);
+        }
+
+        public Object finish() {
+            if (max == null) return null;
+            if (type == AttributeType.INTEGER) return ((Number)max).intValue();
+            else if (type == AttributeType.DOUBLE) return ((Number)max).doubleValue();
+            else if (type == AttributeType.DATE) return new Date(((Date)max).getTime());
+            else if (type == AttributeType.STRING) return max.toString();
+            else return null;
+        }
+
+        private int compare(Object value1, Object value2) {
+            if (type == AttributeType.INTEGER || type == AttributeType.DOUBLE) {
+                return Double.compare(((Number)value1).doubleValue(), ((Number)value2).doubleValue());
+            }
+            else if (type == AttributeType.DATE) {
+                return Long.compare(((Date)value1).getTime(), ((Date)value2).getTime());
+            }
+            else return value1.toString().compareToIgnoreCase(value2.toString());
+        }
     }
 
 }
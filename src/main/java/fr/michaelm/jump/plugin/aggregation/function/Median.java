@@ -26,12 +26,10 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
+import java.util.Comparator;
 import java.util.List;
 
 
@@ -56,85 +54,59 @@ public class Median extends AggregationFunction {
                             String sourceAttr,
                             boolean ignore_null,
                             Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        AttributeType type = schema.getAttributeType(index);
-        if (type == AttributeType.INTEGER) return medianInteger(list, index, ignore_null, param);
-        if (type == AttributeType.DOUBLE) return medianDouble(list, index, ignore_null, param);
-        if (type == AttributeType.STRING) return medianString(list, index, ignore_null, param);
-        if (type == AttributeType.DATE) return medianDate(list, index, ignore_null, param);
-        return null;
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
     }
 
-    public Integer medianInteger(List<Feature> list, int index,
-        boolean ignore_null, Object param) {
-        List<Integer> values = new ArrayList<>();
-        for (Feature f : list) {
-            Integer value = f.getInteger(index);
-            if (ignore_null) {
-                if (value==null || value==0) continue;
-            }
-            values.add(value);
-        }
-        Collections.sort(values);
-        if (values.size()>0) return values.get(values.size()/2);
-        else return null;
+
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new MedianAccumulator(inputType, ignore_null);
     }
 
 
-    public Double medianDouble(List<Feature> list, int index,
-        boolean ignore_null, Object param) {
-        List<Double> values = new ArrayList<Double>();
-        for (Feature f : list) {
-            Double value = f.getDouble(index);
-            if (ignore_null) {
-                if (value==null || value==0) continue;
-            }
-            values.add(value);
-        }
-        Collections.sort(values);
-        if (values.size()>0) return values.get(values.size()/2);
-        else return null;
+    public AttributeType getReturnAttributeType(AttributeType inputType) {
+        if (inputType == AttributeType.GEOMETRY) return null;
+        if (inputType == AttributeType.DOUBLE) return null;
+        else return inputType;
     }
 
 
-    public String medianString(List<Feature> list, int index,
-        boolean ignore_null, Object param) {
-        List<String> values = new ArrayList<>();
-        for (Feature f : list) {
-            String value = f.getString(index);
-            if (ignore_null) {
-                if (value==null || value.trim().length()==0) continue;
-            }
-            values.add(value);
+    private static class MedianAccumulator extends Accumulator {
+
+        private final AttributeType type;
+        private final boolean ignore_null;
+        private final List<Comparable<Object>> values = new ArrayList<>();
+
+        MedianAccumulator(AttributeType type, boolean ignore_null) {
+            this.type = type;
+            this.ignore_null = ignore_null;
         }
-        Collections.sort(values);
-        if (values.size()>0) return values.get(values.size()/2);
-        else return null;
-    }
 
+        @SuppressWarnings("unchecked")
+        public void accumulate(Object value) {
+            if (ignore_null && isNull(value)) return;
+            values.add((Comparable<Object>)value);
+        }
 
-    public Date medianDate(List<Feature> list, int index,
-        boolean ignore_null, Object param) {
-        List<Date> values = new ArrayList<>();
-        for (Feature f : list) {
-            Date value = (Date)f.getAttribute(index);
-            if (ignore_null) {
-                if (value==null) continue;
-            }
-            values.add(value);
+        public void merge(Accumulator other) {
+            values.addAll(((MedianAccumulator)other).values);
         }
-        Collections.sort(values);
-        if (values.size()>0) return values.get(values.size()/2);
-        else return null;
-    }
 
+        public Object finish() {
+            if (values.isEmpty()) return null;
+            values.sort(Comparator.nullsFirst(Comparator.naturalOrder()));
+            return values.get(values.size()/2);
+        }
 
-    public AttributeType getReturnAttributeType(AttributeType inputType) {
-        if (inputType == AttributeType.GEOMETRY) return null;
-        if (inputType == AttributeType.DOUBLE) return null;
-        else return inputType;
+        // 0 and blank strings are considered as null values
+        private boolean isNull(Object value) {
+            if (value == null) return true;
+            if (type == AttributeType.INTEGER || type == AttributeType.DOUBLE) {
+                return ((Number)value).doubleValue() == 0;
+            }
+            if (type == AttributeType.STRING) return value.toString().trim().length()==0;
+            return false;
+        }
     }
 
 }
@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.Date;
@@ -51,60 +50,67 @@ public class Min extends AggregationFunction {
 
 
     public Object aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        AttributeType type = schema.getAttributeType(index);
-        if (type == AttributeType.INTEGER) return minInteger(list, index);
-        else if (type == AttributeType.DOUBLE) return minDouble(list, index);
-        else if (type == AttributeType.DATE) return minDate(list, index);
-        else if (type == AttributeType.STRING) return minString(list, index);
-        else return null;
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
     }
 
 
-    private Integer minInteger(List<Feature> list, int index) {
-        int min = Integer.MAX_VALUE;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null && f.getInteger(index)<min) min = f.getInteger(index);
-        }
-        return min==Integer.MAX_VALUE?null: min;
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new MinAccumulator(inputType);
     }
 
 
-    private Double minDouble(List<Feature> list, int index) {
-        double min = Double.MAX_VALUE;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null && f.getDouble(index)<min) min = f.getDouble(index);
-        }
-        return min==Double.MAX_VALUE?null: min;
+    public AttributeType getReturnAttributeType(AttributeType inputType) {
+        if (inputType == AttributeType.GEOMETRY) return null;
+        else return inputType;
     }
 
 
-    private Date minDate(List<Feature> list, int index) {
-        long min = Long.MAX_VALUE;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null && ((Date)f.getAttribute(index)).getTime()<min) min = ((Date)f.getAttribute(index)).getTime();
+    private static class MinAccumulator extends Accumulator {
+
+        private final AttributeType type;
+        private Object min = null;
+
+        MinAccumulator(AttributeType type) {
+            this.type = type;
         }
-        return min==Long.MAX_VALUE?null:new Date(min);
-    }
 
+        public void accumulate(Object value) {
+            if (value == null) return;
+            if (min == null || compare(value, min) < 0) min = value;
+        }
 
-    private String minString(List<Feature> list, int index) {
-        String min = null;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                if (min==null) min = f.getString(index);
-                else if (f.getString(index).compareToIgnoreCase(min)<0) min = f.getString(index);
-            }
+        public void accumulate(int value) {
+            accumulate((double)value);
         }
-        return min;
-    }
 
+        public void accumulate(double value) {
+            // only a new minimum is boxed
+            if (min == null || Double.compare(value, ((Number)min).doubleValue()) < 0) min = value;
+        }
 
-    public AttributeType getReturnAttributeType(AttributeType inputType) {
-        if (inputType == AttributeType.GEOMETRY) return null;
-        else return inputType;
+        public void merge(Accumulator other) {
+            accumulate(((MinAccumulator)other).min);
+        }
+
+        public Object finish() {
+            if (min == null) return null;
+            if (type == AttributeType.INTEGER) return ((Number)min).intValue();
+            else if (type == AttributeType.DOUBLE) return ((Number)min).doubleValue();
+            else if (type == AttributeType.DATE) return new Date(((Date)min).getTime());
+            else if (type == AttributeType.STRING) return min.toString();
+            else return null;
+        }
+
+        private int compare(Object value1, Object value2) {
+            if (type == AttributeType.INTEGER || type == AttributeType.DOUBLE) {
+                return Double.compare(((Number)value1).doubleValue(), ((Number)value2).doubleValue());
+            }
+            else if (type == AttributeType.DATE) {
+                return Long.compare(((Date)value1).getTime(), ((Date)value2).getTime());
+            }
+            else return value1.toString().compareToIgnoreCase(value2.toString());
+        }
     }
 
 }
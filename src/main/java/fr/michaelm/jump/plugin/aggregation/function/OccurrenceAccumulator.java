@@ -0,0 +1,81 @@
+/*
+ * (C) 2021 Michaël Michaud
+ * 
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ * 
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation.function;
+
+import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
+
+import java.util.*;
+
+
+/**
+ * An accumulator counting occurrences of each attribute value, used by
+ * {@link Majority} and {@link Minority} aggregation functions.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+
+class OccurrenceAccumulator extends AggregationFunction.Accumulator {
+
+    private final boolean ignore_null;
+    private final boolean majority;
+    private final HashMap<Object,Integer> map = new HashMap<>();
+
+    /**
+     * @param ignore_null if true, null, blank and 0 values are ignored
+     * @param majority if true, finish returns the most frequent value,
+     *                 else it returns the less frequent one
+     */
+    OccurrenceAccumulator(boolean ignore_null, boolean majority) {
+        this.ignore_null = ignore_null;
+        this.majority = majority;
+    }
+
+    public void accumulate(Object value) {
+        if (ignore_null) {
+            if (value==null) return;
+            String sval = value.toString().trim();
+            if (sval.length()==0 || sval.equals("0") || sval.equals("0.0")) return;
+        }
+        map.merge(value, 1, Integer::sum);
+    }
+
+    public void merge(AggregationFunction.Accumulator other) {
+        for (Map.Entry<Object,Integer> entry : ((OccurrenceAccumulator)other).map.entrySet()) {
+            map.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+    }
+
+    public Object finish() {
+        if (map.isEmpty()) return null;
+        // find the max (or min) occurrence
+        Integer occ = majority ? Collections.max(map.values()) : Collections.min(map.values());
+        // find the first attribute value having this occurrence
+        for (Map.Entry<Object,Integer> entry : map.entrySet()) {
+            if (entry.getValue().equals(occ)) return entry.getKey();
+        }
+        return null;
+    }
+
+}
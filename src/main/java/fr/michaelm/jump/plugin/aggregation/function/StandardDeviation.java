@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.Date;
@@ -51,87 +50,80 @@ public class StandardDeviation extends AggregationFunction {
 
 
     public Object aggregate(List<Feature> list, String sourceAttr, boolean ignore_null, Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        AttributeType type = schema.getAttributeType(index);
-        if (type == AttributeType.INTEGER) return devInteger(list, index);
-        if (type == AttributeType.DOUBLE) return devDouble(list, index);
-        else if (type == AttributeType.DATE) return devDate(list, index);
-        else return null;
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
     }
 
 
-    private Double devInteger(List<Feature> list, int index) {
-        double sum = 0.0;
-        int n = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                sum += f.getInteger(index);
-                n++;
-            }
-        }
-        if (n==0) return null;
-        double mean = sum/n;
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new DeviationAccumulator(inputType);
+    }
 
-        double dev = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                dev += ((double)f.getInteger(index)-mean)*((double)f.getInteger(index)-mean);
-            }
-        }
-        return Math.sqrt(dev / n);
+
+    public AttributeType getReturnAttributeType(AttributeType inputType) {
+        if (inputType == AttributeType.GEOMETRY) return null;
+        if (inputType == AttributeType.STRING) return null;
+        else return AttributeType.DOUBLE;
     }
 
 
-    private Double devDouble(List<Feature> list, int index) {
-        double sum = 0.0;
-        int n = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                sum += f.getDouble(index);
-                n++;
-            }
+    /**
+     * Single pass computation of the standard deviation (Welford's algorithm),
+     * partial results being merged with Chan's formula.
+     */
+    private static class DeviationAccumulator extends Accumulator {
+
+        private final AttributeType type;
+        private long n = 0;
+        private double mean = 0.0;
+        private double m2 = 0.0;
+
+        DeviationAccumulator(AttributeType type) {
+            this.type = type;
         }
-        if (n==0) return null;
-        double mean = sum/n;
 
-        double dev = 0.0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                dev += (f.getDouble(index)-mean)*(f.getDouble(index)-mean);
+        public void accumulate(Object value) {
+            if (value == null) return;
+            double x;
+            if (type == AttributeType.INTEGER || type == AttributeType.DOUBLE) {
+                x = ((Number)value).doubleValue();
             }
+            else if (type == AttributeType.DATE) x = (double)((Date)value).getTime();
+            else return;
+            add(x);
         }
-        return Math.sqrt(dev / n);
-    }
 
+        public void accumulate(int value) {
+            add(value);
+        }
 
-    private Double devDate(List<Feature> list, int index) {
-        double sum = 0.0;
-        int n = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                sum += (double)((Date)f.getAttribute(index)).getTime();
-                n++;
-            }
+        public void accumulate(double value) {
+            add(value);
         }
-        if (n==0) return null;
-        double mean = sum/n;
 
-        double dev = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) {
-                dev += ((double)((Date)f.getAttribute(index)).getTime()-mean)*((double)((Date)f.getAttribute(index)).getTime()-mean);
-            }
+        private void add(double x) {
+            n++;
+            double delta = x - mean;
+            mean += delta / n;
+            m2 += delta * (x - mean);
         }
-        return Math.sqrt(dev / n) / 1000.0; //standard deviation is returned in seconds
-    }
 
+        public void merge(Accumulator other) {
+            DeviationAccumulator dev = (DeviationAccumulator)other;
+            if (dev.n == 0) return;
+            long count = n + dev.n;
+            double delta = dev.mean - mean;
+            mean += delta * dev.n / count;
+            m2 += dev.m2 + delta * delta * ((double)n * dev.n / count);
+            n = count;
+        }
 
-    public AttributeType getReturnAttributeType(AttributeType inputType) {
-        if (inputType == AttributeType.GEOMETRY) return null;
-        if (inputType == AttributeType.STRING) return null;
-        else return AttributeType.DOUBLE;
+        public Object finish() {
+            if (n == 0) return null;
+            double dev = Math.sqrt(m2 / n);
+            //standard deviation is returned in seconds
+            return type == AttributeType.DATE ? dev / 1000.0 : dev;
+        }
     }
 
 }
@@ -26,7 +26,6 @@ package fr.michaelm.jump.plugin.aggregation.function;
 import com.vividsolutions.jump.I18N;
 import com.vividsolutions.jump.feature.AttributeType;
 import com.vividsolutions.jump.feature.Feature;
-import com.vividsolutions.jump.feature.FeatureSchema;
 import fr.michaelm.jump.plugin.aggregation.AggregationFunction;
 
 import java.util.Date;
@@ -53,58 +52,83 @@ public class Sum extends AggregationFunction {
                             String sourceAttr,
                             boolean ignore_null,
                             Object param) {
-        if (list.isEmpty()) return null;
-        FeatureSchema schema = list.get(0).getSchema();
-        int index = schema.getAttributeIndex(sourceAttr);
-        AttributeType type = schema.getAttributeType(index);
-        if (type == AttributeType.INTEGER) return sumInteger(list, index);
-        else if (type == AttributeType.DOUBLE) return sumDouble(list, index);
-        else if (type == AttributeType.DATE) return sumDate(list, index);
-        else if (type == AttributeType.STRING) return sumString(list, index);
-        else return null;
+        return aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
     }
 
 
-    private Integer sumInteger(List<Feature> list, int index) {
-        int sum = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) sum += f.getInteger(index);
-        }
-        return sum;
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new SumAccumulator(inputType);
     }
 
 
-    private Double sumDouble(List<Feature> list, int index) {
-        double sum = 0.0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) sum += f.getDouble(index);
-        }
-        return sum;
+    public AttributeType getReturnAttributeType(AttributeType inputType) {
+        if (inputType == AttributeType.GEOMETRY) return null;
+        else return inputType;
     }
 
 
-    private Date sumDate(List<Feature> list, int index) {
-        long sum = 0;
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) sum += ((Date)f.getAttribute(index)).getTime();
+    private static class SumAccumulator extends Accumulator {
+
+        private final AttributeType type;
+        private int n = 0;
+        private int intSum = 0;
+        private double doubleSum = 0.0;
+        private long timeSum = 0;
+        private final StringBuilder stringSum = new StringBuilder();
+
+        SumAccumulator(AttributeType type) {
+            this.type = type;
         }
-        return new Date(sum);
-    }
 
+        public void accumulate(Object value) {
+            n++;
+            if (value == null) return;
+            if (type == AttributeType.INTEGER) intSum += ((Number)value).intValue();
+            else if (type == AttributeType.DOUBLE) doubleSum += ((Number)value).doubleValue();
+            else if (type == AttributeType.DATE) timeSum += ((Date)value).getTime();
+            else if (type == AttributeType.STRING) {
+                if (stringSum.length()>0) stringSum.append("|");
+                stringSum.append(value.toString());
+            }
+        }
 
-    private String sumString(List<Feature> list, int index) {
-        StringBuilder sum = new StringBuilder();
-        for (Feature f : list) {
-            if (f.getAttribute(index)!=null) sum.append(f.getString(index)).append("|");
+        public void accumulate(int value) {
+            if (type != AttributeType.INTEGER) {
+                accumulate((Object)value);
+                return;
+            }
+            n++;
+            intSum += value;
         }
-        if (sum.length()>1)sum.setLength(sum.length()-1);
-        return sum.toString();
-    }
 
+        public void accumulate(double value) {
+            if (type != AttributeType.DOUBLE) {
+                accumulate((Object)value);
+                return;
+            }
+            n++;
+            doubleSum += value;
+        }
 
-    public AttributeType getReturnAttributeType(AttributeType inputType) {
-        if (inputType == AttributeType.GEOMETRY) return null;
-        else return inputType;
+        public void merge(Accumulator other) {
+            SumAccumulator sum = (SumAccumulator)other;
+            n += sum.n;
+            intSum += sum.intSum;
+            doubleSum += sum.doubleSum;
+            timeSum += sum.timeSum;
+            if (stringSum.length()>0 && sum.stringSum.length()>0) stringSum.append("|");
+            stringSum.append(sum.stringSum);
+        }
+
+        public Object finish() {
+            if (n == 0) return null;
+            if (type == AttributeType.INTEGER) return intSum;
+            else if (type == AttributeType.DOUBLE) return doubleSum;
+            else if (type == AttributeType.DATE) return new Date(timeSum);
+            else if (type == AttributeType.STRING) return stringSum.toString();
+            else return null;
+        }
     }
 
 }
@@ -55,10 +55,13 @@ public class Union extends AggregationFunction {
                               String sourceAttr,
                               boolean ignore_null,
                               Object param) {
-        if (list.size()==0) return new GeometryFactory().createGeometryCollection(new Geometry[0]);
-        List<Geometry> geoms = new ArrayList<>();
-        for (Feature f : list) geoms.add(f.getGeometry());
-        return UnaryUnionOp.union(geoms);
+        return (Geometry)aggregateWithAccumulator(list, sourceAttr, ignore_null, param);
+    }
+
+
+    public Accumulator createAccumulator(AttributeType inputType,
+                                         boolean ignore_null, Object param) {
+        return new UnionAccumulator();
     }
 
 
@@ -69,4 +72,35 @@ public class Union extends AggregationFunction {
         else return null;
     }
 
+
+    /**
+     * Geometries are buffered and unioned by batches, so that memory used by
+     * the accumulator stays bounded by the size of the result.
+     */
+    private static class UnionAccumulator extends Accumulator {
+
+        private static final int BATCH_SIZE = 1024;
+
+        private final List<Geometry> geoms = new ArrayList<>();
+
+        public void accumulate(Object value) {
+            if (value == null) return;
+            geoms.add((Geometry)value);
+            if (geoms.size() >= BATCH_SIZE) {
+                Geometry union = UnaryUnionOp.union(geoms);
+                geoms.clear();
+                geoms.add(union);
+            }
+        }
+
+        public void merge(Accumulator other) {
+            for (Geometry g : ((UnionAccumulator)other).geoms) accumulate(g);
+        }
+
+        public Object finish() {
+            if (geoms.isEmpty()) return new GeometryFactory().createGeometryCollection(new Geometry[0]);
+            return UnaryUnionOp.union(geoms);
+        }
+    }
+
 }
@@ -0,0 +1,118 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import fr.michaelm.jump.plugin.aggregation.function.CountNonNull;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that merging accumulators which have accumulated the two parts of
+ * a list of values gives the same result as accumulating the whole list,
+ * for every aggregation function and every input type it accepts.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AccumulatorTest {
+
+    private static final int SIZE = 40;
+    private static final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void testMerge() {
+        List<AggregationFunction> functions = new ArrayList<>(Arrays.asList(AggregationFunction.methods));
+        functions.add(new CountNonNull());
+        AttributeType[] types = new AttributeType[]{AttributeType.INTEGER, AttributeType.DOUBLE,
+            AttributeType.STRING, AttributeType.DATE, AttributeType.GEOMETRY};
+        for (AggregationFunction function : functions) {
+            for (AttributeType type : types) {
+                if (function.getReturnAttributeType(type) == null) continue;
+                List<Object> values = createValues(type);
+                for (boolean ignoreNull : new boolean[]{true, false}) {
+                    Object expected = accumulate(function, type, ignoreNull, values).finish();
+                    for (int split : new int[]{0, 1, SIZE / 2, SIZE - 1, SIZE}) {
+                        AggregationFunction.Accumulator first = accumulate(function, type,
+                            ignoreNull, values.subList(0, split));
+                        first.merge(accumulate(function, type, ignoreNull,
+                            values.subList(split, SIZE)));
+                        assertSameValue(function.getName() + "(" + type + ")" +
+                            (ignoreNull ? "" : "+null") + " split at " + split,
+                            expected, first.finish());
+                    }
+                }
+            }
+        }
+    }
+
+    private static AggregationFunction.Accumulator accumulate(AggregationFunction function,
+                                                              AttributeType type,
+                                                              boolean ignoreNull,
+                                                              List<Object> values) {
+        AggregationFunction.Accumulator accumulator =
+            function.createAccumulator(type, ignoreNull, function.getParameter());
+        for (Object value : values) accumulator.accumulate(value);
+        return accumulator;
+    }
+
+    // values of type, with duplicates and null values
+    private static List<Object> createValues(AttributeType type) {
+        List<Object> values = new ArrayList<>();
+        for (int i = 0 ; i < SIZE ; i++) {
+            int v = (i * 7) % 11;
+            if (i % 6 == 0) values.add(null);
+            else if (type == AttributeType.INTEGER) values.add(v);
+            else if (type == AttributeType.DOUBLE) values.add(v * 0.1);
+            else if (type == AttributeType.STRING) values.add("s" + v);
+            else if (type == AttributeType.DATE) values.add(new Date(v * 86400000L));
+            else values.add(factory.createPolygon(new Coordinate[]{
+                new Coordinate(v, 0), new Coordinate(v + 2, 0), new Coordinate(v + 2, 2),
+                new Coordinate(v, 2), new Coordinate(v, 0)}));
+        }
+        return values;
+    }
+
+    // doubles may differ by rounding errors, geometries by their vertex order
+    private static void assertSameValue(String message, Object expected, Object actual) {
+        if (expected instanceof Double && actual instanceof Double) {
+            assertEquals(message, (Double)expected, (Double)actual,
+                1e-9 * Math.max(1.0, Math.abs((Double)expected)));
+        } else if (expected instanceof Geometry && actual instanceof Geometry) {
+            assertTrue(message, ((Geometry)expected).equalsTopo((Geometry)actual));
+        } else {
+            assertEquals(message, expected, actual);
+        }
+    }
+
+}
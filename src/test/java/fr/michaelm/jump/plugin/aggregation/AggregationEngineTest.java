@@ -0,0 +1,279 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.I18N;
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.BasicFeature;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.task.DummyTaskMonitor;
+import fr.michaelm.jump.plugin.aggregation.function.*;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that all join engines return the same aggregated features, in the
+ * order of targets (double values being equal within a tolerance, as they
+ * depend on the order in which sources are accumulated), and that an engine
+ * returns exactly the same features whatever the number of threads.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AggregationEngineTest {
+
+    private static final I18N i18n = I18N.getInstance("fr.michaelm.jump.plugin.aggregation");
+    private static final GeometryFactory factory = new GeometryFactory();
+    private static final double[] INTERSECTS = new double[0];
+
+    @Test
+    public void testPointSources() {
+        // point sources in polygonal targets are joined by point-in-polygon
+        // tests with the nested loop engine
+        assertEnginesAgree(INTERSECTS, createPoints(2000), createTargets(), "POINT_IN_POLYGON");
+    }
+
+    @Test
+    public void testPolygonSources() {
+        assertEnginesAgree(INTERSECTS, createSquares(1000, 2.0), createTargets(), null);
+    }
+
+    @Test
+    public void testPointDistance() {
+        // point sources within a distance of point targets are joined by
+        // distance queries with the nested loop engine
+        assertEnginesAgree(new double[]{3.0}, createPoints(2000), createPointTargets(),
+            "POINT_DISTANCE");
+    }
+
+    @Test
+    public void testNullAggregatedSeparately() {
+        // Count(value) and Count(value)+null are two aggregations, stored in
+        // two attributes
+        AggregationEngine engine = new AggregationEngine(
+            GeometryPredicate.getPredicate(i18n.get("predicate.Intersects")), INTERSECTS,
+            Arrays.asList(new AggregationSpec("value", new Count(), true),
+                new AggregationSpec("value", new Count(), false)));
+        Feature[] results = engine.aggregateByTarget(createPoints(2000), createTargets(),
+            new DummyTaskMonitor());
+        FeatureSchema schema = results[0].getSchema();
+        assertEquals(4, schema.getAttributeCount());
+        assertNotEquals(schema.getAttributeName(2), schema.getAttributeName(3));
+        boolean nullCounted = false;
+        for (Feature result : results) {
+            int count = ((Number)result.getAttribute(2)).intValue();
+            int countWithNull = ((Number)result.getAttribute(3)).intValue();
+            assertTrue(countWithNull >= count);
+            nullCounted |= countWithNull > count;
+        }
+        assertTrue(nullCounted);
+    }
+
+    @Test
+    public void testTableOutputTargetIds() {
+        // TARGET_FID is the position of the target, or its id attribute
+        FeatureCollection sources = createPoints(2000);
+        FeatureCollection targets = createTargets();
+        for (JoinEngine joinEngine : JoinEngine.values()) {
+            for (String idAttribute : new String[]{null, "id"}) {
+                AggregationEngine engine = new AggregationEngine(
+                    GeometryPredicate.getPredicate(i18n.get("predicate.Intersects")), INTERSECTS,
+                    Arrays.asList(new AggregationSpec("value", new Sum(), true)));
+                engine.setTableOutput(true);
+                engine.setTargetIdAttribute(idAttribute);
+                engine.setJoinEngine(joinEngine);
+                Feature[] results = engine.aggregateByTarget(sources, targets,
+                    new DummyTaskMonitor());
+                for (int i = 0 ; i < results.length ; i++) {
+                    Feature target = targets.getFeatures().get(i);
+                    assertEquals(joinEngine + ", target " + i,
+                        idAttribute == null ? (Object)i : target.getAttribute(idAttribute),
+                        results[i].getAttribute(AggregationEngine.TARGET_FID));
+                }
+            }
+        }
+    }
+
+    // compare the results of each engine with the results of the nested
+    // loop engine, and the results of each thread count with the results of
+    // the same engine with one thread (a relation without parameter is
+    // Intersects, a relation with a distance is WithinDistance)
+    private void assertEnginesAgree(double[] params, FeatureCollection sources,
+                                    FeatureCollection targets, String direction) {
+        Feature[] expected = aggregate(params, sources, targets, JoinEngine.NESTED_LOOP, 1,
+            direction);
+        for (JoinEngine joinEngine : JoinEngine.values()) {
+            Feature[] singleThread = aggregate(params, sources, targets, joinEngine, 1,
+                joinEngine == JoinEngine.NESTED_LOOP ? direction : null);
+            assertEquals(joinEngine.toString(), expected.length, singleThread.length);
+            for (int i = 0 ; i < expected.length ; i++) {
+                String message = joinEngine + ", target " + i;
+                assertNotNull(message, singleThread[i]);
+                Object[] expectedValues = expected[i].getAttributes();
+                Object[] values = singleThread[i].getAttributes();
+                assertEquals(message, expectedValues.length, values.length);
+                for (int j = 0 ; j < values.length ; j++) {
+                    if (expectedValues[j] instanceof Double && values[j] instanceof Double) {
+                        double value = (Double)expectedValues[j];
+                        assertEquals(message, value, (Double)values[j],
+                            1e-9 * Math.max(1.0, Math.abs(value)));
+                    } else {
+                        assertEquals(message, expectedValues[j], values[j]);
+                    }
+                }
+            }
+            Feature[] results = aggregate(params, sources, targets, joinEngine, 4,
+                joinEngine == JoinEngine.NESTED_LOOP ? direction : null);
+            assertEquals(joinEngine + " with 4 threads", expected.length, results.length);
+            for (int i = 0 ; i < expected.length ; i++) {
+                assertArrayEquals(joinEngine + " with 4 threads, target " + i,
+                    singleThread[i].getAttributes(), results[i].getAttributes());
+            }
+        }
+    }
+
+    private Feature[] aggregate(double[] params, FeatureCollection sources,
+                                FeatureCollection targets, JoinEngine joinEngine,
+                                int threads, String direction) {
+        List<AggregationSpec> specs = Arrays.asList(
+            new AggregationSpec("GEOMETRY", new Count(), true),
+            new AggregationSpec("value", new Sum(), true),
+            new AggregationSpec("value", new Min(), true),
+            new AggregationSpec("value", new Max(), true),
+            new AggregationSpec("value", new Count(), false),
+            new AggregationSpec("name", new CountNonNull(), true),
+            new AggregationSpec("measure", new Sum(), true),
+            new AggregationSpec("measure", new Average(), true),
+            new AggregationSpec("measure", new StandardDeviation(), true));
+        AggregationEngine engine = new AggregationEngine(GeometryPredicate.getPredicate(
+            i18n.get(params.length == 0 ? "predicate.Intersects" : "predicate.WithinDistance")),
+            params, specs);
+        engine.setJoinEngine(joinEngine);
+        engine.setThreads(threads);
+        Feature[] results = engine.aggregateByTarget(sources, targets, new DummyTaskMonitor());
+        if (direction != null) {
+            assertEquals(direction, engine.getReport().toMap().get("direction"));
+        }
+        return results;
+    }
+
+    // overlapping squares on a grid, and a target with an empty geometry
+    private static FeatureCollection createTargets() {
+        FeatureSchema schema = new FeatureSchema();
+        schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+        schema.addAttribute("id", AttributeType.INTEGER);
+        FeatureCollection targets = new FeatureDataset(schema);
+        for (int i = 0 ; i < 10 ; i++) {
+            for (int j = 0 ; j < 10 ; j++) {
+                targets.add(createFeature(schema,
+                    createSquare(i * 10 - 2, j * 10 - 2, 14), targets.size()));
+            }
+        }
+        targets.add(createFeature(schema, factory.createPolygon((Coordinate[])null), targets.size()));
+        return targets;
+    }
+
+    // points on a grid, and a target with an empty geometry
+    private static FeatureCollection createPointTargets() {
+        FeatureSchema schema = new FeatureSchema();
+        schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+        schema.addAttribute("id", AttributeType.INTEGER);
+        FeatureCollection targets = new FeatureDataset(schema);
+        for (int i = 0 ; i < 20 ; i++) {
+            for (int j = 0 ; j < 20 ; j++) {
+                targets.add(createFeature(schema,
+                    factory.createPoint(new Coordinate(i * 5 + 1, j * 5)), targets.size()));
+            }
+        }
+        targets.add(createFeature(schema, factory.createPoint((Coordinate)null), targets.size()));
+        return targets;
+    }
+
+    private static FeatureCollection createPoints(int count) {
+        Random random = new Random(1);
+        FeatureCollection sources = new FeatureDataset(createSourceSchema());
+        for (int i = 0 ; i < count ; i++) {
+            // some points on target boundaries
+            double x = i % 10 == 0 ? 10 * random.nextInt(10) - 2 : random.nextDouble() * 100;
+            double y = random.nextDouble() * 100;
+            sources.add(createSource(sources.getFeatureSchema(),
+                factory.createPoint(new Coordinate(x, y)), i));
+        }
+        return sources;
+    }
+
+    private static FeatureCollection createSquares(int count, double size) {
+        Random random = new Random(2);
+        FeatureCollection sources = new FeatureDataset(createSourceSchema());
+        for (int i = 0 ; i < count ; i++) {
+            sources.add(createSource(sources.getFeatureSchema(), createSquare(
+                random.nextDouble() * 100, random.nextDouble() * 100, size), i));
+        }
+        return sources;
+    }
+
+    private static FeatureSchema createSourceSchema() {
+        FeatureSchema schema = new FeatureSchema();
+        schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+        schema.addAttribute("value", AttributeType.INTEGER);
+        schema.addAttribute("name", AttributeType.STRING);
+        schema.addAttribute("measure", AttributeType.DOUBLE);
+        return schema;
+    }
+
+    // integer values (sums do not depend on the order of sources), double
+    // values (sums depend on the order of sources), and some null values
+    private static Feature createSource(FeatureSchema schema, Geometry geometry, int i) {
+        Feature feature = createFeature(schema, geometry, i % 7 == 0 ? null : i % 100);
+        feature.setAttribute("name", "n" + i % 5);
+        feature.setAttribute("measure", i % 11 == 0 ? null : 1000.0 / (i + 1) + i * 0.1);
+        return feature;
+    }
+
+    private static Feature createFeature(FeatureSchema schema, Geometry geometry, Integer value) {
+        Feature feature = new BasicFeature(schema);
+        feature.setGeometry(geometry);
+        feature.setAttribute(1, value);
+        return feature;
+    }
+
+    private static Geometry createSquare(double x, double y, double size) {
+        return factory.createPolygon(new Coordinate[]{
+            new Coordinate(x, y), new Coordinate(x + size, y),
+            new Coordinate(x + size, y + size), new Coordinate(x, y + size),
+            new Coordinate(x, y)});
+    }
+
+}
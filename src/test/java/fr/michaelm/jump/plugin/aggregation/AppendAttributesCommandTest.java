@@ -0,0 +1,147 @@
+/*
+ * (C) 2021 Michaël Michaud
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * For more information, contact:
+ *
+ * m.michael.michaud@orange.fr
+ *
+ */
+
+package fr.michaelm.jump.plugin.aggregation;
+
+import com.vividsolutions.jump.feature.AttributeType;
+import com.vividsolutions.jump.feature.BasicFeature;
+import com.vividsolutions.jump.feature.Feature;
+import com.vividsolutions.jump.feature.FeatureCollection;
+import com.vividsolutions.jump.feature.FeatureDataset;
+import com.vividsolutions.jump.feature.FeatureSchema;
+import com.vividsolutions.jump.workbench.model.Layer;
+import com.vividsolutions.jump.workbench.model.LayerManager;
+import com.vividsolutions.jump.workbench.model.StandardCategoryNames;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that undoing an {@link AppendAttributesCommand} restores the
+ * schema, the attributes and the geometries of the target layer, without
+ * removing attributes from a schema.
+ *
+ * @author Michael Michaud
+ * @version 1.0
+ */
+public class AppendAttributesCommandTest {
+
+    private static final GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void testExecuteUnexecute() {
+        Layer layer = createLayer(null);
+        FeatureSchema schema = layer.getFeatureCollectionWrapper().getFeatureSchema();
+        List<Feature> targets = new ArrayList<>(layer.getFeatureCollectionWrapper().getFeatures());
+        Object[][] attributes = new Object[targets.size()][];
+        Geometry[] geometries = new Geometry[targets.size()];
+        for (int i = 0 ; i < targets.size() ; i++) {
+            attributes[i] = targets.get(i).getAttributes().clone();
+            geometries[i] = targets.get(i).getGeometry();
+        }
+        Geometry union = factory.createPoint(new Coordinate(10, 10)).buffer(1.0);
+        // second target has no aggregated values, third one gets an
+        // aggregated geometry
+        Object[][] values = new Object[][]{{null, 2}, null, {union, 5}};
+        AppendAttributesCommand command = new AppendAttributesCommand("test", layer,
+            targets, values, createValuesSchema(AttributeType.INTEGER));
+
+        for (int run = 0 ; run < 2 ; run++) {
+            // second run checks redo
+            command.execute();
+            // the layer schema is replaced, not modified
+            assertFalse(schema.hasAttribute("count"));
+            assertTrue(layer.getFeatureCollectionWrapper().getFeatureSchema().hasAttribute("count"));
+            assertSame(layer.getFeatureCollectionWrapper().getFeatureSchema(),
+                targets.get(0).getSchema());
+            assertEquals(3, targets.get(0).getAttributes().length);
+            assertEquals(2, targets.get(0).getAttribute("count"));
+            assertNull(targets.get(1).getAttribute("count"));
+            assertEquals(5, targets.get(2).getAttribute("count"));
+            assertSame(geometries[0], targets.get(0).getGeometry());
+            assertSame(geometries[1], targets.get(1).getGeometry());
+            assertSame(union, targets.get(2).getGeometry());
+
+            command.unexecute();
+            assertSame(schema, layer.getFeatureCollectionWrapper().getFeatureSchema());
+            for (int i = 0 ; i < targets.size() ; i++) {
+                assertSame(schema, targets.get(i).getSchema());
+                assertArrayEquals(attributes[i], targets.get(i).getAttributes());
+                assertSame(geometries[i], targets.get(i).getGeometry());
+            }
+        }
+    }
+
+    @Test
+    public void testExistingAttribute() {
+        // attribute computed by a previous run
+        Layer layer = createLayer(AttributeType.INTEGER);
+        List<Feature> targets = new ArrayList<>(layer.getFeatureCollectionWrapper().getFeatures());
+        targets.get(0).setAttribute("count", 1);
+        assertTrue(AppendAttributesCommand.canAppend(layer, createValuesSchema(AttributeType.INTEGER)));
+        assertFalse(AppendAttributesCommand.canAppend(layer, createValuesSchema(AttributeType.DOUBLE)));
+
+        AppendAttributesCommand command = new AppendAttributesCommand("test", layer,
+            targets, new Object[][]{{null, 2}, {null, 3}, {null, 4}},
+            createValuesSchema(AttributeType.INTEGER));
+        command.execute();
+        assertEquals(3, layer.getFeatureCollectionWrapper().getFeatureSchema().getAttributeCount());
+        assertEquals(2, targets.get(0).getAttribute("count"));
+        command.unexecute();
+        assertTrue(layer.getFeatureCollectionWrapper().getFeatureSchema().hasAttribute("count"));
+        assertEquals(1, targets.get(0).getAttribute("count"));
+        assertNull(targets.get(1).getAttribute("count"));
+    }
+
+    // layer of three points, with a count attribute of type countType if it
+    // is not null
+    private static Layer createLayer(AttributeType countType) {
+        FeatureSchema schema = new FeatureSchema();
+        schema.addAttribute("GEOMETRY", AttributeType.GEOMETRY);
+        schema.addAttribute("name", AttributeType.STRING);
+        if (countType != null) schema.addAttribute("count", countType);
+        FeatureCollection dataset = new FeatureDataset(schema);
+        for (int i = 0 ; i < 3 ; i++) {
+            Feature feature = new BasicFeature(schema);
+            feature.setGeometry(factory.createPoint(new Coordinate(i, i)));
+            feature.setAttribute("name", "f" + i);
+            dataset.add(feature);
+        }
+        return new LayerManager().addLayer(StandardCategoryNames.WORKING, "targets", dataset);
+    }
+
+    // aggregated geometry followed by a count attribute
+    private static FeatureSchema createValuesSchema(AttributeType countType) {
+        FeatureSchema schema = new FeatureSchema();
+        schema.addAttribute(AggregationEngine.GEOMETRY, AttributeType.GEOMETRY);
+        schema.addAttribute("count", countType);
+        return schema;
+    }
+
+}